@@ -0,0 +1,220 @@
+package jade.tree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Reads trees written by BinaryTreeWriter (see there for the format), one after another, from an
+ *	InputStream. The input is read through one reusable byte buffer and the checksum of each tree is
+ *	verified before the tree is returned.
+ */
+public class BinaryTreeReader {
+	// the most nodes that room is made for before they have been read
+	private static final int MAX_INITIAL_NODES = 1 << 16;
+
+	private final InputStream in;
+	private final byte [] buf = new byte[1 << 16];
+	private int pos = 0;
+	private int limit = 0;
+	private int crcstart = 0; // buf[crcstart .. pos) has not been added to the checksum yet
+	private final CRC32 crc = new CRC32();
+
+	public BinaryTreeReader(InputStream in){
+		this.in = in;
+	}
+
+	/**
+	 * @return the next tree, or null at the end of the input
+	 * @throws IOException if the input cannot be read, is not in the binary tree format or is corrupt
+	 */
+	public CompactTree readCompactTree() throws IOException {
+		if (pos == limit && fill() == false)
+			return null;
+		crc.reset();
+		crcstart = pos;
+		for (byte b : BinaryTreeWriter.MAGIC) {
+			if (readByte() != b)
+				throw new IOException("not a binary tree (bad magic number)");
+		}
+		int version = readByte();
+		if (version != BinaryTreeWriter.VERSION)
+			throw new IOException("unsupported binary tree version " + version);
+		int flags = readByte();
+		int nnodes = readVarInt();
+		int nnames = readVarInt();
+		// every name belongs to at least one node
+		if (nnames > nnodes || (nnodes > 0 && nnames == 0))
+			throw new IOException("bad name count " + nnames + " for " + nnodes + " nodes");
+		// the counts are not checked by the checksum until the end, so only allocate what has been read
+		CompactTree tree = new CompactTree(Math.min(nnodes, MAX_INITIAL_NODES));
+		byte [] namebytes = new byte[64];
+		for (int i = 0; i < nnames; i++) {
+			int length = readVarInt();
+			namebytes = readBytes(namebytes, length);
+			// the writer stores each distinct name once, so there is nothing to deduplicate
+			tree.appendDistinctName(namebytes, length);
+		}
+		// nodes in preorder: the open nodes and how many of their children are still to come
+		int [] stacknodes = new int[16];
+		int [] stackremaining = new int[16];
+		int depth = 0;
+		long previd = 0;
+		for (int i = 0; i < nnodes; i++) {
+			int nchildren = readVarInt();
+			int name = readVarInt();
+			if (name >= nnames)
+				throw new IOException("bad name index " + name + " for node " + i);
+			while (depth > 0 && stackremaining[depth - 1] == 0)
+				depth -= 1;
+			if (i > 0 && depth == 0)
+				throw new IOException("more than one root at node " + i);
+			int parent = CompactTree.NONE;
+			if (depth > 0) {
+				parent = stacknodes[depth - 1];
+				stackremaining[depth - 1] -= 1;
+			}
+			int nd = tree.addNodeWithNameId(parent, name);
+			if ((flags & BinaryTreeWriter.FLAG_LENGTHS) != 0) {
+				long bits = 0;
+				for (int b = 0; b < 8; b++)
+					bits = (bits << 8) | readByte();
+				tree.setLength(nd, Double.longBitsToDouble(bits));
+			}
+			if ((flags & BinaryTreeWriter.FLAG_IDS) != 0) {
+				long zigzag = readVarLong();
+				previd += (zigzag >>> 1) ^ -(zigzag & 1);
+				tree.setNodeId(nd, previd);
+			}
+			if (nchildren > 0) {
+				if (depth == stacknodes.length) {
+					stacknodes = Arrays.copyOf(stacknodes, depth * 2);
+					stackremaining = Arrays.copyOf(stackremaining, depth * 2);
+				}
+				stacknodes[depth] = nd;
+				stackremaining[depth] = nchildren;
+				depth += 1;
+			}
+		}
+		for (int d = 0; d < depth; d++) {
+			if (stackremaining[d] != 0)
+				throw new IOException("binary tree ends before all children were read");
+		}
+		crc.update(buf, crcstart, pos - crcstart);
+		long computed = crc.getValue();
+		// the checksum itself is not checksummed (a refill while reading it must not add the tree again)
+		crcstart = pos;
+		long expected = 0;
+		for (int b = 0; b < 4; b++)
+			expected = (expected << 8) | readByte();
+		if (expected != computed)
+			throw new IOException("binary tree checksum mismatch");
+		return tree;
+	}
+
+	/**
+	 * @return the next tree as a JadeTree (see CompactTree.toJadeTree), or null at the end of the input
+	 */
+	public JadeTree readTree() throws IOException {
+		CompactTree tree = readCompactTree();
+		return tree == null ? null : tree.toJadeTree();
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private int readByte() throws IOException {
+		if (pos == limit && fill() == false)
+			throw new EOFException("binary tree ends early");
+		return buf[pos++] & 0xFF;
+	}
+
+	/**
+	 * Reads `length` bytes into `dest`, which is grown (as the bytes arrive, not to `length` at once) if too small
+	 * @return `dest`, or the array that replaced it
+	 */
+	private byte [] readBytes(byte [] dest, int length) throws IOException {
+		for (int i = 0; i < length; i++) {
+			if (i == dest.length)
+				dest = Arrays.copyOf(dest, (int) Math.min(length, dest.length * 2L));
+			dest[i] = (byte) readByte();
+		}
+		return dest;
+	}
+
+	private int readVarInt() throws IOException {
+		long v = readVarLong();
+		if (v < 0 || v > Integer.MAX_VALUE)
+			throw new IOException("varint out of range: " + v);
+		return (int) v;
+	}
+
+	private long readVarLong() throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("malformed varint");
+	}
+
+	/**
+	 * Refills the buffer, adding the consumed bytes to the checksum first
+	 * @return false at the end of the input
+	 */
+	private boolean fill() throws IOException {
+		crc.update(buf, crcstart, pos - crcstart);
+		pos = 0;
+		limit = 0;
+		crcstart = 0;
+		int n;
+		while ((n = in.read(buf, 0, buf.length)) == 0)
+			;
+		if (n < 0)
+			return false;
+		limit = n;
+		return true;
+	}
+
+	/**
+	 * Times the binary format against newick for a random tree with names, lengths and node ids
+	 * @param args [number of nodes]
+	 */
+	public static void main(String [] args) throws IOException {
+		int nnodes = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		Random rand = new Random(42);
+		CompactTree tree = new CompactTree(nnodes);
+		tree.addNode(CompactTree.NONE, "life");
+		for (int i = 1; i < nnodes; i++) {
+			int nd = tree.addNode(rand.nextInt(i), "taxon_" + i);
+			tree.setNodeId(nd, 1000 + i);
+			tree.setLength(nd, rand.nextDouble());
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		long start = System.currentTimeMillis();
+		new BinaryTreeWriter(bytes).write(tree);
+		System.out.println("binary: " + bytes.size() + " bytes written in " + (System.currentTimeMillis() - start) + " ms");
+		StringBuilder newick = new StringBuilder();
+		tree.writeNewick(newick, true);
+		System.out.println("newick: " + newick.length() + " chars (without ids)");
+		for (int r = 0; r < 3; r++) {
+			start = System.currentTimeMillis();
+			CompactTree read = new BinaryTreeReader(new ByteArrayInputStream(bytes.toByteArray())).readCompactTree();
+			long binarytime = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			JadeTree parsed = new NewickReader(new StringReader(newick.toString())).readNextTree();
+			long newicktime = System.currentTimeMillis() - start;
+			System.out.println("read " + read.size() + " nodes from binary in " + binarytime + " ms, "
+					+ (parsed.getExternalNodeCount() + parsed.getInternalNodeCount()) + " from newick in " + newicktime + " ms");
+		}
+	}
+}
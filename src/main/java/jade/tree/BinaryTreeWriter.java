@@ -0,0 +1,128 @@
+package jade.tree;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Writes trees in the jade binary tree format, one after another, to an OutputStream.
+ *
+ * Each tree is:
+ *	- the magic bytes "JBTR", a version byte and a flags byte (FLAG_LENGTHS, FLAG_IDS)
+ *	- the number of nodes and the number of distinct names (varints)
+ *	- the names: UTF-8 byte count (varint) and bytes, each distinct name once
+ *	- the nodes in preorder: child count and name index (varints), then the branch length (8 bytes,
+ *		big-endian IEEE 754) if FLAG_LENGTHS, then the difference from the previous node id (zigzag
+ *		varint) if FLAG_IDS
+ *	- the CRC32 of all of the above (4 bytes, big-endian)
+ *
+ * Varints are unsigned, 7 bits per byte, least significant group first, with the high bit set on all but
+ *	the last byte. See BinaryTreeReader.
+ */
+public class BinaryTreeWriter {
+	static final byte [] MAGIC = {'J', 'B', 'T', 'R'};
+	static final int VERSION = 1;
+	static final int FLAG_LENGTHS = 1;
+	static final int FLAG_IDS = 2;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final OutputStream out;
+	private final byte [] buf = new byte[1 << 16];
+	private int pos = 0;
+	private final CRC32 crc = new CRC32();
+
+	public BinaryTreeWriter(OutputStream out){
+		this.out = out;
+	}
+
+	/**
+	 * Writes `tree` with its lengths and node ids, if it has any
+	 */
+	public void write(CompactTree tree) throws IOException {
+		crc.reset();
+		int flags = (tree.hasLengths() ? FLAG_LENGTHS : 0) | (tree.hasNodeIds() ? FLAG_IDS : 0);
+		for (byte b : MAGIC)
+			writeByte(b);
+		writeByte(VERSION);
+		writeByte(flags);
+		writeVarLong(tree.size());
+		int nnames = tree.getNameCount();
+		writeVarLong(nnames);
+		for (int i = 0; i < nnames; i++) {
+			byte [] bytes = tree.getPooledName(i).getBytes(UTF8);
+			writeVarLong(bytes.length);
+			writeBytes(bytes);
+		}
+		long previd = 0;
+		if (tree.size() > 0) {
+			CompactTree.NodeIterator it = tree.preorder(tree.getRoot());
+			while (it.hasNext()) {
+				int nd = it.next();
+				writeVarLong(tree.getChildCount(nd));
+				writeVarLong(tree.getNameId(nd));
+				if ((flags & FLAG_LENGTHS) != 0) {
+					long bits = Double.doubleToRawLongBits(tree.getLength(nd));
+					for (int shift = 56; shift >= 0; shift -= 8)
+						writeByte((int) (bits >>> shift));
+				}
+				if ((flags & FLAG_IDS) != 0) {
+					long id = tree.getNodeId(nd);
+					long delta = id - previd;
+					writeVarLong((delta << 1) ^ (delta >> 63));
+					previd = id;
+				}
+			}
+		}
+		flushBuffer();
+		long checksum = crc.getValue();
+		for (int shift = 24; shift >= 0; shift -= 8)
+			buf[pos++] = (byte) (checksum >>> shift);
+		out.write(buf, 0, pos);
+		pos = 0;
+	}
+
+	/**
+	 * Writes `tree` (see CompactTree.fromJadeTree for what is kept)
+	 * @param withlengths write the branch lengths of the nodes
+	 */
+	public void write(JadeTree tree, boolean withlengths) throws IOException {
+		write(CompactTree.fromJadeTree(tree, withlengths));
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private void writeByte(int b) throws IOException {
+		if (pos == buf.length)
+			flushBuffer();
+		buf[pos++] = (byte) b;
+	}
+
+	private void writeBytes(byte [] bytes) throws IOException {
+		for (int i = 0; i < bytes.length; i++)
+			writeByte(bytes[i]);
+	}
+
+	private void writeVarLong(long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			writeByte((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		writeByte((int) v);
+	}
+
+	/**
+	 * Hands the buffered bytes to the stream, adding them to the checksum
+	 */
+	private void flushBuffer() throws IOException {
+		crc.update(buf, 0, pos);
+		out.write(buf, 0, pos);
+		pos = 0;
+	}
+}
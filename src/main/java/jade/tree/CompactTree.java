@@ -0,0 +1,596 @@
+package jade.tree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A rooted tree stored as parallel arrays indexed by node number, for trees with millions of nodes.
+ *
+ * Each node costs a few ints (parent, first child, next sibling, last child and a name id) instead of
+ *	a JadeNode with its children ArrayList and object headers. Names are kept in one pooled char array
+ *	in which each distinct name is stored once, and branch lengths and node ids (e.g. the ids of the
+ *	graph nodes a taxonomy tree was built from) are only allocated when the first one is set. Nodes
+ *	are numbered in the order they are added and a node is always added after its parent, so node 0
+ *	is the root and parents have smaller numbers than their children.
+ *
+ * Traversals (NodeIterator, writeNewick, writeJSON) walk the first child / next sibling links without
+ *	recursion or a stack.
+ */
+public class CompactTree {
+	/**
+	 * The parent of the root, the first child of a tip, the next sibling of a last child
+	 */
+	public static final int NONE = -1;
+
+	private int size = 0;
+	private int [] parent;
+	private int [] firstChild;
+	private int [] nextSibling;
+	private int [] lastChild;
+	private int [] nameid;
+	private double [] lengths = null;
+	private long [] ids = null;
+	private final StringPool names;
+
+	public CompactTree(){
+		this(1024);
+	}
+
+	/**
+	 * @param expectedsize the number of nodes to allocate room for (the arrays grow as needed)
+	 */
+	public CompactTree(int expectedsize){
+		int capacity = Math.max(expectedsize, 16);
+		parent = new int[capacity];
+		firstChild = new int[capacity];
+		nextSibling = new int[capacity];
+		lastChild = new int[capacity];
+		nameid = new int[capacity];
+		names = new StringPool(capacity);
+	}
+
+	/**
+	 * Adds a node as the last child of `parentnode`
+	 * @param parentnode the parent, or NONE to add the root (which must be the first node)
+	 * @param name the name of the node (null is stored as "")
+	 * @return the number of the new node
+	 */
+	public int addNode(int parentnode, String name){
+		return addNodeWithNameId(parentnode, names.intern(name == null ? "" : name));
+	}
+
+	/**
+	 * addNode for a name already in the pool (e.g. one added by appendDistinctName)
+	 */
+	int addNodeWithNameId(int parentnode, int name){
+		if (parentnode == NONE ? size != 0 : (parentnode < 0 || parentnode >= size))
+			throw new IllegalArgumentException("bad parent " + parentnode + " for node " + size);
+		if (size == parent.length)
+			grow(Math.max(size + 1, size + (size >> 1)));
+		int nd = size++;
+		parent[nd] = parentnode;
+		firstChild[nd] = NONE;
+		nextSibling[nd] = NONE;
+		lastChild[nd] = NONE;
+		nameid[nd] = name;
+		if (parentnode != NONE) {
+			if (lastChild[parentnode] == NONE)
+				firstChild[parentnode] = nd;
+			else
+				nextSibling[lastChild[parentnode]] = nd;
+			lastChild[parentnode] = nd;
+		}
+		return nd;
+	}
+
+	/**
+	 * Shrinks the arrays to the number of nodes, e.g. once a large tree has been built
+	 */
+	public void trimToSize(){
+		grow(size);
+		if (lengths != null)
+			lengths = Arrays.copyOf(lengths, size);
+		if (ids != null)
+			ids = Arrays.copyOf(ids, size);
+		names.trimToSize();
+	}
+
+	private void grow(int capacity){
+		parent = Arrays.copyOf(parent, capacity);
+		firstChild = Arrays.copyOf(firstChild, capacity);
+		nextSibling = Arrays.copyOf(nextSibling, capacity);
+		lastChild = Arrays.copyOf(lastChild, capacity);
+		nameid = Arrays.copyOf(nameid, capacity);
+		if (lengths != null)
+			lengths = Arrays.copyOf(lengths, Math.max(capacity, size));
+		if (ids != null) {
+			int oldlength = ids.length;
+			ids = Arrays.copyOf(ids, Math.max(capacity, size));
+			if (ids.length > oldlength)
+				Arrays.fill(ids, oldlength, ids.length, NONE);
+		}
+	}
+
+	public int size(){return size;}
+
+	/**
+	 * @return the root (node 0), or NONE for an empty tree
+	 */
+	public int getRoot(){return size == 0 ? NONE : 0;}
+
+	public int getParent(int nd){return parent[nd];}
+
+	public int getFirstChild(int nd){return firstChild[nd];}
+
+	public int getNextSibling(int nd){return nextSibling[nd];}
+
+	public boolean isTip(int nd){return firstChild[nd] == NONE;}
+
+	/**
+	 * O(number of children)
+	 */
+	public int getChildCount(int nd){
+		int count = 0;
+		for (int ch = firstChild[nd]; ch != NONE; ch = nextSibling[ch])
+			count += 1;
+		return count;
+	}
+
+	public String getName(int nd){return names.get(nameid[nd]);}
+
+	/*
+	 * the name pool, for BinaryTreeReader and BinaryTreeWriter
+	 */
+	int getNameId(int nd){return nameid[nd];}
+
+	int getNameCount(){return names.count;}
+
+	String getPooledName(int id){return names.get(id);}
+
+	int appendDistinctName(byte [] utf8, int length){return names.appendDistinct(utf8, length);}
+
+	/**
+	 * @return true if any branch length has been set
+	 */
+	public boolean hasLengths(){return lengths != null;}
+
+	/**
+	 * @return the length of the branch below `nd`, 0.0 if none was set
+	 */
+	public double getLength(int nd){
+		if (nd < 0 || nd >= size)
+			throw new IndexOutOfBoundsException("node " + nd);
+		return lengths == null ? 0.0 : lengths[nd];
+	}
+
+	public void setLength(int nd, double bl){
+		if (nd < 0 || nd >= size)
+			throw new IndexOutOfBoundsException("node " + nd);
+		if (lengths == null)
+			lengths = new double[parent.length];
+		lengths[nd] = bl;
+	}
+
+	/**
+	 * @return true if any node id has been set
+	 */
+	public boolean hasNodeIds(){return ids != null;}
+
+	/**
+	 * @return the id set for `nd`, or NONE
+	 */
+	public long getNodeId(int nd){
+		if (nd < 0 || nd >= size)
+			throw new IndexOutOfBoundsException("node " + nd);
+		return ids == null ? NONE : ids[nd];
+	}
+
+	public void setNodeId(int nd, long id){
+		if (nd < 0 || nd >= size)
+			throw new IndexOutOfBoundsException("node " + nd);
+		if (ids == null) {
+			ids = new long[parent.length];
+			Arrays.fill(ids, NONE);
+		}
+		ids[nd] = id;
+	}
+
+	/**
+	 * Iterates over node numbers without boxing them
+	 */
+	public static abstract class NodeIterator {
+		public abstract boolean hasNext();
+		public abstract int next();
+	}
+
+	/**
+	 * @return the nodes of the subtree below (and including) `start`, parents before their children
+	 */
+	public NodeIterator preorder(final int start){
+		return new NodeIterator(){
+			private int nd = start;
+
+			public boolean hasNext(){
+				return nd != NONE;
+			}
+
+			public int next(){
+				int ret = nd;
+				if (firstChild[nd] != NONE) {
+					nd = firstChild[nd];
+				} else {
+					while (nd != start && nextSibling[nd] == NONE)
+						nd = parent[nd];
+					nd = nd == start ? NONE : nextSibling[nd];
+				}
+				return ret;
+			}
+		};
+	}
+
+	/**
+	 * @return the nodes of the subtree below (and including) `start`, children before their parents
+	 */
+	public NodeIterator postorder(final int start){
+		return new NodeIterator(){
+			private int nd = leftmostTip(start);
+
+			public boolean hasNext(){
+				return nd != NONE;
+			}
+
+			public int next(){
+				int ret = nd;
+				if (nd == start)
+					nd = NONE;
+				else if (nextSibling[nd] != NONE)
+					nd = leftmostTip(nextSibling[nd]);
+				else
+					nd = parent[nd];
+				return ret;
+			}
+		};
+	}
+
+	private int leftmostTip(int nd){
+		while (firstChild[nd] != NONE)
+			nd = firstChild[nd];
+		return nd;
+	}
+
+	/**
+	 * @return for each node, the number of tips in the subtree below it (1 for a tip)
+	 */
+	public int [] getTipCounts(){
+		int [] counts = new int[size];
+		// children have larger numbers than their parents, so a reverse scan is a postorder
+		for (int nd = size - 1; nd >= 0; nd--) {
+			if (firstChild[nd] == NONE)
+				counts[nd] += 1;
+			if (parent[nd] != NONE)
+				counts[parent[nd]] += counts[nd];
+		}
+		return counts;
+	}
+
+	/**
+	 * Writes the tree as newick (terminated by ';'). Labels that newick would misread are single quoted.
+	 * @param bl should be true to include branch lengths (only written if any were set)
+	 */
+	public void writeNewick(Appendable out, boolean bl) throws IOException {
+		int root = getRoot();
+		if (root == NONE) {
+			out.append(';');
+			return;
+		}
+		bl = bl && lengths != null;
+		int nd = root;
+		while (true) {
+			if (firstChild[nd] != NONE) {
+				out.append('(');
+				nd = firstChild[nd];
+				continue;
+			}
+			writeNewickLabel(out, nd, bl);
+			while (nd != root && nextSibling[nd] == NONE) {
+				nd = parent[nd];
+				out.append(')');
+				writeNewickLabel(out, nd, bl);
+			}
+			if (nd == root)
+				break;
+			out.append(',');
+			nd = nextSibling[nd];
+		}
+		out.append(';');
+	}
+
+	private void writeNewickLabel(Appendable out, int nd, boolean bl) throws IOException {
+		names.appendNewick(out, nameid[nd]);
+		if (bl && parent[nd] != NONE)
+			out.append(':').append(Double.toString(lengths[nd]));
+	}
+
+	/**
+	 * Writes the tree as nested JSON objects with the keys of JadeNode.getJSON: "name", "nodeid" (if set),
+	 *	"children", "size" (the branch length, if `bl`) and "nleaves" (0 for a tip).
+	 */
+	public void writeJSON(Appendable out, boolean bl) throws IOException {
+		int root = getRoot();
+		if (root == NONE) {
+			out.append("{}");
+			return;
+		}
+		bl = bl && lengths != null;
+		int [] tipcounts = getTipCounts();
+		int nd = root;
+		while (true) {
+			out.append("{\"name\": \"");
+			names.appendJSON(out, nameid[nd]);
+			out.append('"');
+			if (ids != null && ids[nd] != NONE)
+				out.append(", \"nodeid\": \"").append(Long.toString(ids[nd])).append('"');
+			if (firstChild[nd] != NONE) {
+				out.append(", \"children\": [");
+				nd = firstChild[nd];
+				continue;
+			}
+			closeJSON(out, nd, bl, tipcounts);
+			while (nd != root && nextSibling[nd] == NONE) {
+				nd = parent[nd];
+				out.append(']');
+				closeJSON(out, nd, bl, tipcounts);
+			}
+			if (nd == root)
+				break;
+			out.append(',');
+			nd = nextSibling[nd];
+		}
+	}
+
+	private void closeJSON(Appendable out, int nd, boolean bl, int [] tipcounts) throws IOException {
+		if (bl)
+			out.append(", \"size\": ").append(Double.toString(lengths[nd]));
+		out.append(", \"nleaves\": ").append(Integer.toString(firstChild[nd] == NONE ? 0 : tipcounts[nd])).append('}');
+	}
+
+	/**
+	 * Node ids are copied from the "nodeid" objects (see JadeNode.assocObject) of the nodes that have one.
+	 * @param withlengths copy the branch lengths of the nodes
+	 * @return a CompactTree with the structure, names (and lengths) of `tree`, numbered in preorder
+	 */
+	public static CompactTree fromJadeTree(JadeTree tree, boolean withlengths){
+		CompactTree ret = new CompactTree(tree.getExternalNodeCount() + tree.getInternalNodeCount());
+		JadeNode root = tree.getRoot();
+		if (root == null)
+			return ret;
+		// preorder with an explicit stack; children are pushed in reverse so they come out in order
+		ArrayList<JadeNode> stack = new ArrayList<JadeNode>();
+		int [] stackparents = new int[16];
+		stack.add(root);
+		stackparents[0] = NONE;
+		while (stack.isEmpty() == false) {
+			int top = stack.size() - 1;
+			JadeNode jn = stack.remove(top);
+			int nd = ret.addNode(stackparents[top], jn.getName());
+			if (withlengths)
+				ret.setLength(nd, jn.getBL());
+			Object nodeid = jn.getObject("nodeid");
+			if (nodeid instanceof Number)
+				ret.setNodeId(nd, ((Number) nodeid).longValue());
+			for (int i = jn.getChildCount() - 1; i >= 0; i--) {
+				if (stack.size() == stackparents.length)
+					stackparents = Arrays.copyOf(stackparents, stackparents.length * 2);
+				stackparents[stack.size()] = nd;
+				stack.add(jn.getChild(i));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return a JadeTree with the structure, names and (if set) lengths of this tree; node ids are
+	 *		stored as Long "nodeid" objects
+	 */
+	public JadeTree toJadeTree(){
+		if (size == 0)
+			return new JadeTree();
+		JadeNode [] jadenodes = new JadeNode[size];
+		for (int nd = 0; nd < size; nd++) {
+			JadeNode jn = new JadeNode(nd == 0 ? null : jadenodes[parent[nd]]);
+			jn.setName(getName(nd));
+			if (lengths != null)
+				jn.setBL(lengths[nd]);
+			if (ids != null && ids[nd] != NONE)
+				jn.assocObject("nodeid", ids[nd]);
+			// nodes are numbered in sibling order, and a new node cannot already be a child
+			if (nd != 0)
+				jadenodes[parent[nd]].getChildren().add(jn);
+			jadenodes[nd] = jn;
+		}
+		return new JadeTree(jadenodes[0]);
+	}
+
+	/**
+	 * The distinct names of a CompactTree, stored one after another in a char array and found through
+	 *	an open addressing table of name ids.
+	 */
+	private static class StringPool {
+		private char [] chars;
+		private int [] starts; // name i is chars[starts[i] .. starts[i + 1])
+		private int count = 0;
+		private int [] table; // name id + 1, 0 for an empty slot; null when it has to be rebuilt
+
+		StringPool(int expected){
+			chars = new char[Math.max(expected * 8, 64)];
+			starts = new int[Math.max(expected, 16) + 1];
+			int capacity = 16;
+			while (capacity < expected * 2)
+				capacity <<= 1;
+			table = new int[capacity];
+		}
+
+		/**
+		 * @return the id of `s`, adding it if it is not in the pool yet
+		 */
+		int intern(String s){
+			if (table == null)
+				rehash(Math.max(16, Integer.highestOneBit(Math.max(count, 1)) * 4));
+			int mask = table.length - 1;
+			int i = s.hashCode() & mask;
+			while (table[i] != 0) {
+				int id = table[i] - 1;
+				if (matches(id, s))
+					return id;
+				i = (i + 1) & mask;
+			}
+			if (count + 1 == starts.length)
+				starts = Arrays.copyOf(starts, Math.max(starts.length + 1, starts.length + (starts.length >> 1)));
+			int end = starts[count] + s.length();
+			if (end > chars.length)
+				chars = Arrays.copyOf(chars, Math.max(end, chars.length + (chars.length >> 1)));
+			s.getChars(0, s.length(), chars, starts[count]);
+			starts[count + 1] = end;
+			table[i] = count + 1;
+			count += 1;
+			if (count * 2 > table.length)
+				rehash(table.length * 2);
+			return count - 1;
+		}
+
+		/**
+		 * Adds a name that is known not to be in the pool yet (e.g. from the deduplicated name table of
+		 *	the binary format) from its UTF-8 bytes, decoding ASCII without creating a String. The lookup
+		 *	table is rebuilt by the next intern.
+		 * @return the id of the name
+		 */
+		int appendDistinct(byte [] utf8, int length){
+			if (count + 1 == starts.length)
+				starts = Arrays.copyOf(starts, Math.max(starts.length + 1, starts.length + (starts.length >> 1)));
+			int start = starts[count];
+			if (start + length > chars.length)
+				chars = Arrays.copyOf(chars, Math.max(start + length, chars.length + (chars.length >> 1)));
+			int end = start;
+			for (int j = 0; j < length && end >= 0; j++) {
+				if (utf8[j] < 0)
+					end = -1;
+				else
+					chars[end++] = (char) utf8[j];
+			}
+			if (end < 0) {
+				// not ASCII; a multibyte name has no more chars than bytes, so it fits too
+				String s = new String(utf8, 0, length, BinaryTreeWriter.UTF8);
+				s.getChars(0, s.length(), chars, start);
+				end = start + s.length();
+			}
+			starts[count + 1] = end;
+			count += 1;
+			table = null;
+			return count - 1;
+		}
+
+		private boolean matches(int id, String s){
+			int start = starts[id];
+			if (starts[id + 1] - start != s.length())
+				return false;
+			for (int j = 0; j < s.length(); j++) {
+				if (chars[start + j] != s.charAt(j))
+					return false;
+			}
+			return true;
+		}
+
+		private void rehash(int capacity){
+			table = new int[capacity];
+			int mask = table.length - 1;
+			for (int id = 0; id < count; id++) {
+				int h = 0;
+				for (int j = starts[id]; j < starts[id + 1]; j++)
+					h = 31 * h + chars[j];
+				int i = h & mask;
+				while (table[i] != 0)
+					i = (i + 1) & mask;
+				table[i] = id + 1;
+			}
+		}
+
+		String get(int id){
+			return new String(chars, starts[id], starts[id + 1] - starts[id]);
+		}
+
+		void appendNewick(Appendable out, int id) throws IOException {
+			int start = starts[id];
+			int end = starts[id + 1];
+			boolean quote = false;
+			for (int j = start; j < end && quote == false; j++)
+				quote = "()[]{}':;, \t\n".indexOf(chars[j]) >= 0;
+			if (quote)
+				out.append('\'');
+			for (int j = start; j < end; j++) {
+				if (chars[j] == '\'')
+					out.append('\'');
+				out.append(chars[j]);
+			}
+			if (quote)
+				out.append('\'');
+		}
+
+		void appendJSON(Appendable out, int id) throws IOException {
+			for (int j = starts[id]; j < starts[id + 1]; j++) {
+				char c = chars[j];
+				if (c == '"' || c == '\\')
+					out.append('\\').append(c);
+				else if (c < 0x20)
+					out.append(String.format("\\u%04x", (int) c));
+				else
+					out.append(c);
+			}
+		}
+
+		void trimToSize(){
+			chars = Arrays.copyOf(chars, starts[count]);
+			starts = Arrays.copyOf(starts, count + 1);
+		}
+	}
+
+	/**
+	 * Compares the heap used by a random tree as a JadeTree and as a CompactTree
+	 * @param args [number of nodes]
+	 */
+	public static void main(String [] args) throws IOException {
+		int nnodes = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		Random rand = new Random(42);
+		int [] parents = new int[nnodes];
+		parents[0] = NONE;
+		for (int i = 1; i < nnodes; i++)
+			parents[i] = rand.nextInt(i);
+		long base = usedHeap();
+		long start = System.currentTimeMillis();
+		CompactTree compact = new CompactTree(nnodes);
+		for (int i = 0; i < nnodes; i++)
+			compact.addNode(parents[i], "taxon_" + i);
+		compact.trimToSize();
+		long compacttime = System.currentTimeMillis() - start;
+		long compactheap = usedHeap() - base;
+		System.out.println("CompactTree: " + compacttime + " ms, " + compactheap / (1024 * 1024) + " MB");
+		start = System.currentTimeMillis();
+		JadeTree jade = compact.toJadeTree();
+		long jadetime = System.currentTimeMillis() - start;
+		long jadeheap = usedHeap() - base - compactheap;
+		System.out.println("JadeTree:    " + jadetime + " ms, " + jadeheap / (1024 * 1024) + " MB ("
+				+ jade.getExternalNodeCount() + " tips)");
+		StringBuilder sb = new StringBuilder();
+		start = System.currentTimeMillis();
+		compact.writeNewick(sb, false);
+		System.out.println("newick of " + sb.length() + " chars in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private static long usedHeap(){
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
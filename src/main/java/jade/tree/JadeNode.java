@@ -13,7 +13,25 @@ public class JadeNode {
 	private String name;
 	private JadeNode parent;
 	private ArrayList<JadeNode> children;
-	private ArrayList<NodeObject> assoc; // @note might need to make this a HashMap<String, Object> or TreeMap<String,Object>
+	/*
+	 * associated objects (see assocObject). The keys that the taxonomy code sets on every node have their
+	 *	own fields; any other key goes in `assoc`, a small open addressing table of alternating keys and
+	 *	values that is only allocated when the first such key is set.
+	 */
+	private Object nodeid;
+	private Object conflictrels;
+	private Object jsonprint;
+	private Object nodedepth;
+	private Object [] assoc;
+	private int assocCount;
+	/*
+	 * cached statistics of the subtree rooted here (see computeSubtreeStats), tipCount is -1 when they have
+	 *	to be recomputed. A node only has valid statistics if all of its descendants do, so invalidating
+	 *	can stop at the first ancestor that is already invalid.
+	 */
+	private int tipCount = -1;
+	private int subtreeNodeCount;
+	private int maxNodeDepth;
 	
 	/*
 	 * constructors
@@ -26,7 +44,6 @@ public class JadeNode {
 		this.name = "";
 		this.parent = null;
 		this.children = new ArrayList<JadeNode> ();
-		this.assoc = new ArrayList<NodeObject>();
 	}
 	
 	public JadeNode(JadeNode parent){
@@ -37,7 +54,6 @@ public class JadeNode {
 		this.name = "";
 		this.parent = parent;
 		this.children = new ArrayList<JadeNode> ();
-		this.assoc = new ArrayList<NodeObject>();
 	}
 	
 	public JadeNode(double BL, int number, String name, JadeNode parent){
@@ -48,7 +64,6 @@ public class JadeNode {
 		this.name = name;
 		this.parent = parent;
 		this.children = new ArrayList<JadeNode> ();
-		this.assoc = new ArrayList<NodeObject>();
 	}
 
 	/*
@@ -57,6 +72,10 @@ public class JadeNode {
 	
 	public JadeNode [] getChildrenArr(){return (JadeNode[])this.children.toArray();}
 	
+	/**
+	 * Changes made directly to the returned list are not seen by the cached subtree statistics (use
+	 *	addChild and removeChild, or call invalidateSubtreeStats)
+	 */
 	public ArrayList<JadeNode> getChildren(){return this.children;}
 	
 	public boolean isExternal(){return (this.children.size() < 1);}
@@ -83,6 +102,7 @@ public class JadeNode {
 		if(this.hasChild(c)==false){
 			this.children.add(c);
 			c.setParent(this);
+			this.invalidateSubtreeStats();
 			return true;
 		}else{
 			return false;
@@ -92,6 +112,7 @@ public class JadeNode {
 	public boolean removeChild(JadeNode c){
 		if(this.hasChild(c)){
 			this.children.remove(c);
+			this.invalidateSubtreeStats();
 			return true;
 		}else{
 			return false;
@@ -141,8 +162,8 @@ public class JadeNode {
 			ret += " \"name\": \"" + this.getName() + "\"";
 		else
 			ret += " \"name\": \"\"";
-		if(this.getObject("nodeid") != null)
-			ret += "\n, \"nodeid\": \"" + this.getObject("nodeid") + "\"";
+		if(this.nodeid != null)
+			ret += "\n, \"nodeid\": \"" + this.nodeid + "\"";
 		for(int i = 0; i < this.getChildCount(); i++){
 			if(i == 0)
 				ret += "\n, \"children\": [\n";
@@ -154,12 +175,12 @@ public class JadeNode {
 		}
 		if (bl)
 			ret += ", \"size\": " + this.getBL();
-		if((this.getObject("jsonprint")) != null)
-			ret += this.getObject("jsonprint");
-		if(this.getObject("nodedepth") != null)
-			ret += ", \"maxnodedepth\": " + this.getObject("nodedepth");
+		if(this.jsonprint != null)
+			ret += this.jsonprint;
+		if(this.nodedepth != null)
+			ret += ", \"maxnodedepth\": " + this.nodedepth;
 		if(this.isInternal())
-			ret += ", \"nleaves\": " + this.getTips().size();
+			ret += ", \"nleaves\": " + this.getTipCount();
 		else
 			ret += ", \"nleaves\": 0";
 		ret += "}";
@@ -170,13 +191,13 @@ public class JadeNode {
 	 * @return Returns all of the tips in the subtree rooted at `this`
 	 */
 	public ArrayList<JadeNode> getTips(){
-		ArrayList<JadeNode> children = new ArrayList<JadeNode>();
-		Stack<JadeNode> nodes = new Stack<JadeNode>();
-		nodes.push(this);
+		ArrayList<JadeNode> children = new ArrayList<JadeNode>(this.tipCount > 0 ? this.tipCount : 10);
+		ArrayList<JadeNode> nodes = new ArrayList<JadeNode>();
+		nodes.add(this);
 		while(nodes.isEmpty() == false){
-			JadeNode jt = nodes.pop();
+			JadeNode jt = nodes.remove(nodes.size() - 1);
 			for (int i = 0; i < jt.getChildCount(); i++){
-				nodes.push(jt.getChild(i));
+				nodes.add(jt.getChild(i));
 			}
 			if (jt.isExternal())
 				children.add(jt);
@@ -184,24 +205,82 @@ public class JadeNode {
 		return children;
 	}
 	
+	/**
+	 * @return the number of tips in the subtree rooted at `this` (1 for a tip). Cached, see computeSubtreeStats.
+	 */
+	public int getTipCount(){
+		if (this.tipCount < 0)
+			this.computeSubtreeStats();
+		return this.tipCount;
+	}
+	
+	/**
+	 * @return the number of nodes in the subtree rooted at `this`, including `this`. Cached, see
+	 *	computeSubtreeStats.
+	 */
+	public int getSubtreeNodeCount(){
+		if (this.tipCount < 0)
+			this.computeSubtreeStats();
+		return this.subtreeNodeCount;
+	}
+	
 	/**
 	 * @return Returns the maximum number of edges between `this` and a tip
-	 *		that is a descendant of `this`
+	 *		that is a descendant of `this`. Cached, see computeSubtreeStats.
 	 */
 	public int getNodeMaxDepth(){
-		int maxnodedepth = 0;
-		ArrayList<JadeNode> tips = this.getTips();
-		for(int i = 0; i < tips.size(); i++){
-			JadeNode curnode = tips.get(i);
-			int tnodedepth = 0;
-			while(curnode != this){
-				tnodedepth += 1;
-				curnode = curnode.getParent();
+		if (this.tipCount < 0)
+			this.computeSubtreeStats();
+		return this.maxNodeDepth;
+	}
+	
+	/**
+	 * Marks the cached subtree statistics of `this` and its ancestors as stale. addChild and removeChild
+	 *	call this; code that changes the children lists directly should call it on the changed node.
+	 */
+	public void invalidateSubtreeStats(){
+		for (JadeNode cur = this; cur != null && cur.tipCount >= 0; cur = cur.parent)
+			cur.tipCount = -1;
+	}
+	
+	/**
+	 * Fills in the tip count, node count and max depth of every node in the subtree that does not have them,
+	 *	in one postorder pass. Subtrees that still have valid statistics are not entered.
+	 */
+	private void computeSubtreeStats(){
+		// breadth-first list of the stale nodes; walking it backwards visits children before their parents
+		ArrayList<JadeNode> stale = new ArrayList<JadeNode>();
+		stale.add(this);
+		for (int i = 0; i < stale.size(); i++) {
+			ArrayList<JadeNode> ch = stale.get(i).children;
+			for (int j = 0; j < ch.size(); j++) {
+				if (ch.get(j).tipCount < 0)
+					stale.add(ch.get(j));
 			}
-			if (tnodedepth > maxnodedepth)
-				maxnodedepth = tnodedepth;
 		}
-		return maxnodedepth;
+		for (int i = stale.size() - 1; i >= 0; i--) {
+			JadeNode cur = stale.get(i);
+			ArrayList<JadeNode> ch = cur.children;
+			if (ch.isEmpty()) {
+				cur.tipCount = 1;
+				cur.subtreeNodeCount = 1;
+				cur.maxNodeDepth = 0;
+				continue;
+			}
+			int tips = 0;
+			int nodes = 1;
+			int depth = 0;
+			for (int j = 0; j < ch.size(); j++) {
+				JadeNode c = ch.get(j);
+				tips += c.tipCount;
+				nodes += c.subtreeNodeCount;
+				if (c.maxNodeDepth >= depth)
+					depth = c.maxNodeDepth + 1;
+			}
+			cur.tipCount = tips;
+			cur.subtreeNodeCount = nodes;
+			cur.maxNodeDepth = depth;
+		}
 	}
 	
 	public JadeNode getParent(){return this.parent;}
@@ -218,45 +297,77 @@ public class JadeNode {
 	
 	/**
 	 * Adds or a replace a mapping of key->obj for this node
-	 * @note this in an example of an O(N) routine that would be constant time
-	 * 		or O(log(N)) if we change the assoc datatype.
+	 * Constant time: "nodeid", "conflictrels", "jsonprint" and "nodedepth" are stored in fields, other
+	 *	keys in a hash table.
 	 * @param key
 	 * @param obj Object to be storted
 	 */
 	public void assocObject(String key, Object obj){
-		// @todo This is written as if there could be multiple elements in assoc that
-		//		have the same key. I don't think this is true. (we should probably
-		//		return on finding a match, rather than set a test=true flag).
-		boolean test = false;
-		for(int i = 0; i < this.assoc.size(); i++){
-			if(this.assoc.get(i).getName().compareTo(key) == 0){
-				test = true;
-				this.assoc.get(i).setObject(obj);
+		if (key.equals("nodeid")) {
+			this.nodeid = obj;
+		} else if (key.equals("conflictrels")) {
+			this.conflictrels = obj;
+		} else if (key.equals("jsonprint")) {
+			this.jsonprint = obj;
+		} else if (key.equals("nodedepth")) {
+			this.nodedepth = obj;
+		} else {
+			if (this.assoc == null)
+				this.assoc = new Object[8];
+			else if ((this.assocCount + 1) * 4 > this.assoc.length)
+				growAssoc();
+			int slot = findSlot(this.assoc, key);
+			if (this.assoc[slot] == null) {
+				this.assoc[slot] = key;
+				this.assocCount += 1;
 			}
-		}
-		if(test == false){
-			NodeObject no = new NodeObject(key, obj);
-			this.assoc.add(no);
+			this.assoc[slot + 1] = obj;
 		}
 	}
 	
 	/**
 	 * @return Object associated with this node and key through a previous call
 	 *		to assocObject, or null
-	 * @note this in an example of an O(N) routine that would be constant time
-	 * 		or O(log(N)) if we change the assoc datatype.
 	 * @param key
 	 */
 	public Object getObject(String key){
-		// @todo This is written as if there could be multiple elements in assoc that
-		//		have the same key. I don't think this is true. (we should probably
-		//		return on finding a match, rather than continueing to walk through the list).
-		Object a = null;
-		for(int i = 0; i < this.assoc.size(); i++){
-			if(this.assoc.get(i).getName().compareTo(key) == 0){
-				a = this.assoc.get(i).getObject();
+		if (key.equals("nodeid"))
+			return this.nodeid;
+		if (key.equals("conflictrels"))
+			return this.conflictrels;
+		if (key.equals("jsonprint"))
+			return this.jsonprint;
+		if (key.equals("nodedepth"))
+			return this.nodedepth;
+		if (this.assoc == null)
+			return null;
+		return this.assoc[findSlot(this.assoc, key) + 1];
+	}
+
+	/**
+	 * @return the index of the key cell holding `key` in `table` (linear probing over key/value pairs),
+	 *		or of the empty key cell where it would go
+	 */
+	private static int findSlot(Object [] table, String key){
+		int mask = (table.length >> 1) - 1;
+		int pair = key.hashCode() & mask;
+		while (table[pair << 1] != null && table[pair << 1].equals(key) == false)
+			pair = (pair + 1) & mask;
+		return pair << 1;
+	}
+
+	/**
+	 * Doubles the table of other keys so that it stays at most half full
+	 */
+	private void growAssoc(){
+		Object [] old = this.assoc;
+		this.assoc = new Object[old.length * 2];
+		for (int i = 0; i < old.length; i += 2) {
+			if (old[i] != null) {
+				int slot = findSlot(this.assoc, (String) old[i]);
+				this.assoc[slot] = old[i];
+				this.assoc[slot + 1] = old[i + 1];
 			}
 		}
-		return a;
 	}
 }
@@ -20,6 +20,10 @@ public class JadeTree {
 
 	private int externalNodeCount; // @todo could be removed by relying on externalNodes.size()
 
+	private HashMap<String,JadeNode> externalNodesByName; // built on the first lookup by name, null when stale
+
+	private HashMap<String,JadeNode> internalNodesByName; // built on the first lookup by name, null when stale
+
 	/*
 	 * constructors
 	 */
@@ -37,23 +41,41 @@ public class JadeTree {
 
 	/**
 	 * Initializes data members based on current root.
+	 *	The node lists are cleared and refilled rather than reallocated, and the name indexes are dropped.
 	 */
 	public void processRoot() {
-		nodes = new ArrayList<JadeNode>();
-		internalNodes = new ArrayList<JadeNode>();
-		externalNodes = new ArrayList<JadeNode>();
+		if (nodes == null) {
+			nodes = new ArrayList<JadeNode>();
+			internalNodes = new ArrayList<JadeNode>();
+			externalNodes = new ArrayList<JadeNode>();
+		} else {
+			nodes.clear();
+			internalNodes.clear();
+			externalNodes.clear();
+		}
 		internalNodeCount = 0;
 		externalNodeCount = 0;
+		invalidateNameIndexes();
 		if (root == null)
 			return;
 		postOrderProcessRoot(root);
 	}
 
+	/**
+	 * Drops the name -> node indexes so that the next lookup by name rebuilds them. processRoot does this;
+	 *	call it directly after renaming nodes without changing the structure of the tree.
+	 */
+	public void invalidateNameIndexes() {
+		externalNodesByName = null;
+		internalNodesByName = null;
+	}
+
 	/**
 	 * Adds `tn` to the this.externalNodes, but does not tell the node its number
 	 *	@todo Is this deprecated? it is not usesd within opentree-treemachine code
 	 */
 	public void addExternalNode(JadeNode tn) {
+		invalidateNameIndexes();
 		externalNodes.add(tn);
 		externalNodeCount = externalNodes.size();
 		nodes.add(tn);
@@ -64,6 +86,7 @@ public class JadeTree {
 	 *	@todo Is this deprecated? it is not usesd within opentree-machine code
 	 */
 	public void addInternalNode(JadeNode tn) {
+		invalidateNameIndexes();
 		internalNodes.add(tn);
 		internalNodeCount = internalNodes.size();
 		//to nodes
@@ -75,6 +98,7 @@ public class JadeTree {
 	 * @todo it is unclear why we can't just make num a local variable that it eaqual to the initial externalNodes.size();
 	 */
 	public void addExternalNode(JadeNode tn, int num) {
+		invalidateNameIndexes();
 		externalNodes.add(tn);
 		externalNodeCount = externalNodes.size();
 		//to nodes
@@ -87,6 +111,7 @@ public class JadeTree {
 	 * @todo it is unclear why we can't just make num a local variable that it eaqual to the initial internalNodes.size();
 	 */
 	public void addInternalNode(JadeNode tn, int num) {
+		invalidateNameIndexes();
 		internalNodes.add(tn);
 		internalNodeCount = internalNodes.size();
 		nodes.add(tn);
@@ -101,18 +126,26 @@ public class JadeTree {
 	}
 
 	/**
-	 * @return a leaf with name `name` or null
-	 * O(N) lookup.
+	 * @return a leaf with name `name` (the first one in externalNodes if the name is repeated) or null
+	 * O(1) lookup once the index has been built (O(N), on the first call after a change). Only the tree
+	 *	level calls drop the index: after editing nodes directly (JadeNode.addChild, removeChild or
+	 *	setName) call processRoot, or invalidateNameIndexes if only names changed, or this returns stale
+	 *	answers.
 	 */
 	public JadeNode getExternalNode(String name) {
-		Iterator go = externalNodes.iterator();
-		while (go.hasNext()) {
-			JadeNode ne = (JadeNode) go.next();
-			if (ne.getName().compareTo(name) == 0) {
-				return ne;
-			}
-		}
-		return null;
+		if (externalNodesByName == null)
+			externalNodesByName = indexByName(externalNodes);
+		return externalNodesByName.get(name);
+	}
+
+	/**
+	 * @return the leaves named by `names`, in the same order, with null for names that are not in the tree
+	 */
+	public List<JadeNode> getExternalNodes(Collection<String> names) {
+		ArrayList<JadeNode> ret = new ArrayList<JadeNode>(names.size());
+		for (String name : names)
+			ret.add(getExternalNode(name));
+		return ret;
 	}
 
 	/**
@@ -124,18 +157,37 @@ public class JadeTree {
 	}
 
 	/**
-	 * @return an internal node with name `name` or null
-	 * O(N) lookup.
+	 * @return an internal node with name `name` (the first one in internalNodes if the name is repeated) or null
+	 * O(1) lookup once the index has been built (O(N), on the first call after a change). As with
+	 *	getExternalNode(String), call processRoot or invalidateNameIndexes after editing nodes directly.
 	 */
 	public JadeNode getInternalNode(String name) {
-		Iterator go = internalNodes.iterator();
-		while (go.hasNext()) {
-			JadeNode ne = (JadeNode) go.next();
-			if (ne.getName().compareTo(name) == 0) {
-				return ne;
-			}
+		if (internalNodesByName == null)
+			internalNodesByName = indexByName(internalNodes);
+		return internalNodesByName.get(name);
+	}
+
+	/**
+	 * @return the internal nodes named by `names`, in the same order, with null for names that are not in the tree
+	 */
+	public List<JadeNode> getInternalNodes(Collection<String> names) {
+		ArrayList<JadeNode> ret = new ArrayList<JadeNode>(names.size());
+		for (String name : names)
+			ret.add(getInternalNode(name));
+		return ret;
+	}
+
+	/**
+	 * @return name -> node for the named nodes of `list`, keeping the first node of a repeated name
+	 */
+	private static HashMap<String,JadeNode> indexByName(List<JadeNode> list) {
+		HashMap<String,JadeNode> index = new HashMap<String,JadeNode>(list.size() * 2);
+		for (int i = list.size() - 1; i >= 0; i--) {
+			String name = list.get(i).getName();
+			if (name != null)
+				index.put(name, list.get(i));
 		}
-		return null;
+		return index;
 	}
 	
 	/**
@@ -151,7 +203,10 @@ public class JadeTree {
 	
 	public JadeNode getRoot() {return root;}
 
-	public void setRoot(JadeNode root) {this.root = root;}
+	public void setRoot(JadeNode root) {
+		this.root = root;
+		invalidateNameIndexes();
+	}
 
 	/**
 	 * Adds a mapping of key->obj for this tree. Unlike the JavaNode version,
@@ -293,51 +348,24 @@ public class JadeTree {
 	/**
 	 * @return the node in the tree that is the most recent common ancestor of all of the leaves specified
 	 * @param innodes an array of leaf node names
-	 * @todo this could be optimized (by not calling getMRCATraverse repeatedly)
 	 */
 	public JadeNode getMRCA(String [] innodes){
-		if(innodes.length == 1)
-    		return this.getExternalNode(innodes[0]);
-		ArrayList <String> outgroup = new ArrayList<String>();
-		for(int i = 0;i < innodes.length; i++){
-			outgroup.add(innodes[i]);
-		}
-		JadeNode cur1 = this.getExternalNode(outgroup.get(0));
-		outgroup.remove(0);
-		JadeNode cur2 = null;
-		JadeNode tempmrca = null;
-		while(outgroup.size() > 0){
-			cur2 = this.getExternalNode(outgroup.get(0));
-			outgroup.remove(0);
-			tempmrca = getMRCATraverse(cur1, cur2);
-			cur1 = tempmrca;
-		}
-		return cur1;
-    }
-	
+		return getMRCA(Arrays.asList(innodes));
+	}
+
 	/**
 	 * @return the node in the tree that is the most recent common ancestor of all of the leaves specified
-	 * @param innodes an array of leaf node names
-	 * @todo this could be optimized (by not calling getMRCATraverse repeatedly)
+	 *	(null if one of them is not in the tree)
+	 * @param innodes leaf node names
 	 */
-	public JadeNode getMRCA(ArrayList<String> innodes){
-    	if(innodes.size() == 1)
-    		return this.getExternalNode(innodes.get(0));
-		ArrayList <String> outgroup = new ArrayList<String>();
-		for(int i=0;i<innodes.size();i++){outgroup.add(innodes.get(i));}
-		JadeNode cur1 = this.getExternalNode(outgroup.get(0));
-		outgroup.remove(0);
-		JadeNode cur2 = null;
-		JadeNode tempmrca = null;
-		while(outgroup.size()>0){
-			cur2 = this.getExternalNode(outgroup.get(0));
-			outgroup.remove(0);
-			tempmrca = getMRCATraverse(cur1,cur2);
-			cur1 = tempmrca;
-		}
+	public JadeNode getMRCA(List<String> innodes){
+		List<JadeNode> leaves = getExternalNodes(innodes);
+		JadeNode cur1 = leaves.get(0);
+		for (int i = 1; i < leaves.size() && cur1 != null; i++)
+			cur1 = getMRCATraverse(cur1, leaves.get(i));
 		return cur1;
-    }
-	
+	}
+
 	/**
 	 * Changes the direction of the arc connecting node to it's parent
 	 * @todo uses recursion.
@@ -376,20 +404,37 @@ public class JadeTree {
 	}
 
 	/**
-	 * Adds node and its descendants to the appropriate list (externalNodes or internalNodes)
+	 * Adds node and its descendants to the appropriate list (externalNodes or internalNodes), in postorder.
+	 *	Iterative (with an explicit stack of nodes and child positions), so that deep trees do not overflow
+	 *	the call stack.
 	 */
 	private void postOrderProcessRoot(JadeNode node) {
 		if (node == null)
 			return;
-		if (node.getChildCount() > 0) {
-			for (int i = 0; i < node.getChildCount(); i++) {
-				postOrderProcessRoot(node.getChild(i)); //@todo recursion could be a problem for big trees...
+		ArrayList<JadeNode> stack = new ArrayList<JadeNode>();
+		int [] nextchild = new int[16];
+		stack.add(node);
+		while (stack.isEmpty() == false) {
+			int top = stack.size() - 1;
+			JadeNode cur = stack.get(top);
+			if (nextchild[top] < cur.getChildCount()) {
+				JadeNode child = cur.getChild(nextchild[top]++);
+				if (top + 1 == nextchild.length)
+					nextchild = Arrays.copyOf(nextchild, nextchild.length * 2);
+				nextchild[top + 1] = 0;
+				stack.add(child);
+				continue;
+			}
+			stack.remove(top);
+			if (cur.isExternal()) {
+				externalNodes.add(cur);
+				nodes.add(cur);
+				cur.setNumber(externalNodeCount++);
+			} else {
+				internalNodes.add(cur);
+				nodes.add(cur);
+				cur.setNumber(internalNodeCount++);
 			}
-		}
-		if (node.isExternal()) {
-			addExternalNode(node, externalNodeCount);
-		} else {
-			addInternalNode(node, internalNodeCount);
 		}
 	}
 
@@ -438,9 +483,8 @@ public class JadeTree {
 	 *
 	 */
 	private static JadeNode getMRCATraverse(JadeNode curn1, JadeNode curn2) {
-		JadeNode mrca = null;
 		//get path to root for first node
-		ArrayList<JadeNode> path1 = new ArrayList<JadeNode>();
+		HashSet<JadeNode> path1 = new HashSet<JadeNode>();
 		JadeNode parent = curn1;
 		while (parent != null) {
 			path1.add(parent);
@@ -0,0 +1,264 @@
+package jade.tree;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Random;
+
+/**
+ * Streaming newick parser: reads one tree after another from a Reader without holding the text of
+ *	the whole input in memory.
+ *
+ * The input is read through a fixed char buffer, and labels and branch lengths are collected in one
+ *	reusable token buffer, so each label costs a single String allocation however long it is.
+ *	Single quoted labels (with '' for a quote) may contain any character, and [comments] are skipped
+ *	wherever whitespace is allowed. As in TreeReader, unquoted labels may contain blanks ("Homo
+ *	sapiens"); each run of whitespace inside one becomes a single space and blanks around it are
+ *	dropped. Unlike TreeReader, nodes are added to their parents without the duplicate check of
+ *	JadeNode.addChild, so wide polytomies parse in linear time.
+ */
+public class NewickReader {
+	private static final int EOF = -1;
+
+	private final Reader in;
+	private final char [] buf = new char[8192];
+	private int pos = 0;
+	private int limit = 0;
+	private char [] token = new char[64];
+	private int tokenlen = 0;
+	private int ntrees = 0;
+
+	public NewickReader(Reader in){
+		this.in = in;
+	}
+
+	/**
+	 * @return the next tree in the input, or null if only whitespace and comments are left
+	 * @throws IOException if the input cannot be read or is not valid newick
+	 */
+	public JadeTree readNextTree() throws IOException {
+		int c = skipBlanks();
+		if (c == EOF)
+			return null;
+		ntrees += 1;
+		JadeNode root = new JadeNode();
+		JadeNode cur = root;
+		JadeNode labelled = null;
+		while (true) {
+			c = skipBlanks();
+			if (c == EOF) {
+				throw error("unexpected end of input");
+			} else if (c == '(') {
+				pos++;
+				cur = newChild(cur);
+			} else if (c == ',') {
+				pos++;
+				if (cur.getParent() == null)
+					throw error("',' outside of parentheses");
+				cur = newChild(cur.getParent());
+			} else if (c == ')') {
+				pos++;
+				if (cur.getParent() == null)
+					throw error("unbalanced ')'");
+				cur = cur.getParent();
+			} else if (c == ':') {
+				pos++;
+				skipBlanks();
+				readUnquoted();
+				try {
+					cur.setBL(Double.parseDouble(new String(token, 0, tokenlen)));
+				} catch (NumberFormatException nfe) {
+					throw error("bad branch length \"" + new String(token, 0, tokenlen) + "\"");
+				}
+			} else if (c == ';') {
+				pos++;
+				if (cur != root)
+					throw error("unbalanced '('");
+				break;
+			} else {
+				if (labelled == cur)
+					throw error("second label for node \"" + cur.getName() + "\"");
+				if (c == '\'') {
+					pos++;
+					readQuoted();
+				} else {
+					readUnquoted();
+				}
+				cur.setName(new String(token, 0, tokenlen));
+				labelled = cur;
+			}
+		}
+		return new JadeTree(root);
+	}
+
+	/**
+	 * Reads every remaining tree, calling `handler` on each
+	 * @return the number of trees read
+	 */
+	public int readAll(TreeHandler handler) throws IOException {
+		int count = 0;
+		JadeTree tree;
+		while ((tree = readNextTree()) != null) {
+			handler.handle(tree);
+			count += 1;
+		}
+		return count;
+	}
+
+	/**
+	 * Receives the trees of readAll
+	 */
+	public interface TreeHandler {
+		void handle(JadeTree tree);
+	}
+
+	private static JadeNode newChild(JadeNode parent){
+		JadeNode child = new JadeNode(parent);
+		// bypasses addChild, which is only safe because both nodes were made by this parse: a new node
+		// cannot already be a child (the linear duplicate check), and nothing has computed the subtree
+		// statistics of `parent` or its ancestors yet, so there are none to invalidate
+		parent.getChildren().add(child);
+		return child;
+	}
+
+	/**
+	 * Skips whitespace and [comments]
+	 * @return the next character (without consuming it), or EOF
+	 */
+	private int skipBlanks() throws IOException {
+		while (true) {
+			int c = peek();
+			if (c == EOF)
+				return EOF;
+			if (c == '[') {
+				pos++;
+				while ((c = peek()) != ']') {
+					if (c == EOF)
+						throw error("unterminated comment");
+					pos++;
+				}
+				pos++;
+			} else if (Character.isWhitespace(c)) {
+				pos++;
+			} else {
+				return c;
+			}
+		}
+	}
+
+	/**
+	 * Reads characters up to (not including) the next delimiter into the token buffer, with each run of
+	 *	whitespace between other characters collapsed to one space and trailing whitespace dropped
+	 */
+	private void readUnquoted() throws IOException {
+		tokenlen = 0;
+		boolean blank = false;
+		int c;
+		while ((c = peek()) != EOF) {
+			if (c == '(' || c == ')' || c == ',' || c == ':' || c == ';' || c == '[')
+				break;
+			if (Character.isWhitespace(c)) {
+				blank = tokenlen > 0;
+			} else {
+				if (blank)
+					append(' ');
+				blank = false;
+				append((char) c);
+			}
+			pos++;
+		}
+	}
+
+	/**
+	 * Reads the rest of a single quoted label (the opening quote has been consumed) into the token buffer
+	 */
+	private void readQuoted() throws IOException {
+		tokenlen = 0;
+		while (true) {
+			int c = peek();
+			if (c == EOF)
+				throw error("unterminated quoted label");
+			pos++;
+			if (c == '\'') {
+				if (peek() != '\'')
+					return;
+				pos++;
+			}
+			append((char) c);
+		}
+	}
+
+	private void append(char c){
+		if (tokenlen == token.length) {
+			char [] bigger = new char[token.length * 2];
+			System.arraycopy(token, 0, bigger, 0, tokenlen);
+			token = bigger;
+		}
+		token[tokenlen++] = c;
+	}
+
+	private int peek() throws IOException {
+		if (pos == limit) {
+			limit = in.read(buf, 0, buf.length);
+			pos = 0;
+			if (limit <= 0) {
+				limit = 0;
+				return EOF;
+			}
+		}
+		return buf[pos];
+	}
+
+	private IOException error(String msg){
+		return new IOException(msg + " in tree " + ntrees);
+	}
+
+	/**
+	 * Times TreeReader against NewickReader on random trees
+	 * @param args [number of tips] [label length] [repeats]
+	 */
+	public static void main(String [] args) throws IOException {
+		int ntips = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int labellength = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+		int repeats = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		String newick = randomNewick(ntips, labellength, new Random(42));
+		System.out.println("tree of " + ntips + " tips, " + newick.length() + " chars");
+		for (int r = 0; r < repeats; r++) {
+			long start = System.nanoTime();
+			JadeTree t1 = new TreeReader().readTree(newick);
+			long old = System.nanoTime() - start;
+			start = System.nanoTime();
+			JadeTree t2 = new NewickReader(new StringReader(newick)).readNextTree();
+			long stream = System.nanoTime() - start;
+			System.out.println("TreeReader " + old / 1000000 + " ms (" + t1.getExternalNodeCount() + " tips), NewickReader "
+					+ stream / 1000000 + " ms (" + t2.getExternalNodeCount() + " tips)");
+		}
+	}
+
+	/**
+	 * @return a newick string for a random binary tree (random joins of subtrees) with branch lengths
+	 */
+	static String randomNewick(int ntips, int labellength, Random rand){
+		StringBuilder [] subtrees = new StringBuilder[ntips];
+		for (int i = 0; i < ntips; i++) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("t").append(i).append('_');
+			while (sb.length() < labellength)
+				sb.append((char) ('a' + rand.nextInt(26)));
+			sb.append(':').append(rand.nextDouble());
+			subtrees[i] = sb;
+		}
+		for (int n = ntips; n > 1; n--) {
+			int i = rand.nextInt(n);
+			int j = rand.nextInt(n - 1);
+			if (j >= i)
+				j += 1;
+			StringBuilder joined = new StringBuilder(subtrees[i].length() + subtrees[j].length() + 24);
+			joined.append('(').append(subtrees[i]).append(',').append(subtrees[j]).append("):").append(rand.nextDouble());
+			subtrees[Math.min(i, j)] = joined;
+			subtrees[Math.max(i, j)] = subtrees[n - 1];
+		}
+		String ret = subtrees[0].toString();
+		return ret.substring(0, ret.lastIndexOf(':')) + ";";
+	}
+}
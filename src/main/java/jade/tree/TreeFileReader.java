@@ -3,7 +3,297 @@ package jade.tree;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+/**
+ * Reads every tree of a newick or NEXUS file, parsing the trees in parallel.
+ *
+ * The input is split into tree records by scanning for ';' terminators outside of quoted labels and
+ *	[comments]; only that scan runs in the calling thread. Each record is parsed by NewickReader on the
+ *	worker pool. At most `maxpending` records are in flight at any time, so memory stays bounded
+ *	however many trees the file holds, and the trees come back in file order.
+ *
+ * A file whose first token is #NEXUS is read as NEXUS: the tree commands of its TREES blocks are
+ *	used (other blocks are skipped), and tip labels listed in a TRANSLATE command are replaced by
+ *	their full names.
+ */
 public class TreeFileReader {
-	public TreeFileReader(){}
+	private final Reader in;
+	private final ExecutorService pool;
+	private final int maxpending;
+	private final ArrayDeque<Future<JadeTree>> pending = new ArrayDeque<Future<JadeTree>>();
+	private final StringBuilder statement = new StringBuilder();
+	private boolean started = false;
+	private boolean nexus = false;
+	private boolean intrees = false;
+	private boolean exhausted = false;
+	private int nrecords = 0;
+	private Map<String,String> translation = null;
+
+	/**
+	 * @param pool the workers that parse the trees, or null to parse them in the calling thread
+	 * @param maxpending the maximum number of trees read ahead of the caller (at least 1)
+	 */
+	public TreeFileReader(Reader in, ExecutorService pool, int maxpending){
+		this.in = in.markSupported() ? in : new BufferedReader(in);
+		this.pool = pool;
+		this.maxpending = Math.max(1, maxpending);
+	}
+
+	/**
+	 * @return the trees of the file `filename`, in file order
+	 */
+	public static List<JadeTree> readTrees(String filename, ExecutorService pool) throws IOException {
+		Reader r = new FileReader(filename);
+		try {
+			return new TreeFileReader(r, pool, 256).readAll();
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * @return the next tree in file order, or null after the last one
+	 * @throws IOException if the input cannot be read or a tree is not valid newick
+	 */
+	public JadeTree readNextTree() throws IOException {
+		while (exhausted == false && pending.size() < maxpending) {
+			final String record = nextRecord();
+			if (record == null) {
+				exhausted = true;
+				break;
+			}
+			final int recordnum = ++nrecords;
+			// without workers nothing is read ahead
+			if (pool == null)
+				return parseRecord(record, recordnum, translation);
+			final Map<String,String> tr = translation;
+			pending.add(pool.submit(new Callable<JadeTree>(){
+				public JadeTree call() throws IOException {
+					return parseRecord(record, recordnum, tr);
+				}
+			}));
+		}
+		Future<JadeTree> next = pending.poll();
+		if (next == null)
+			return null;
+		try {
+			return next.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while parsing trees");
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException)
+				throw (IOException) ee.getCause();
+			throw new RuntimeException("failed to parse a tree", ee.getCause());
+		}
+	}
+
+	/**
+	 * @return all of the remaining trees, in file order
+	 */
+	public List<JadeTree> readAll() throws IOException {
+		ArrayList<JadeTree> trees = new ArrayList<JadeTree>();
+		JadeTree tree;
+		while ((tree = readNextTree()) != null)
+			trees.add(tree);
+		return trees;
+	}
+
+	private static JadeTree parseRecord(String record, int recordnum, Map<String,String> translation) throws IOException {
+		JadeTree tree;
+		try {
+			tree = new NewickReader(new StringReader(record)).readNextTree();
+		} catch (IOException ioe) {
+			// NewickReader only sees this one record, so give the position in the file instead
+			throw new IOException(ioe.getMessage().replaceFirst(" in tree 1$", "") + " in tree " + recordnum);
+		}
+		if (tree == null)
+			throw new IOException("empty record for tree " + recordnum);
+		// only tips are translated; internal labels are usually support values, which may look like keys
+		if (translation != null) {
+			for (int i = 0; i < tree.getExternalNodeCount(); i++)
+				translate(tree.getExternalNode(i), translation);
+		}
+		return tree;
+	}
+
+	private static void translate(JadeNode nd, Map<String,String> translation){
+		String name = translation.get(nd.getName());
+		if (name != null)
+			nd.setName(name);
+	}
+
+	/**
+	 * @return the newick text (with its ';') of the next tree, or null at the end of the input
+	 */
+	private String nextRecord() throws IOException {
+		while (true) {
+			if (nextStatement() == false)
+				return null;
+			String bare = stripComments(statement).trim();
+			if (started == false) {
+				started = true;
+				if (bare.regionMatches(true, 0, "#NEXUS", 0, 6)) {
+					nexus = true;
+					// the statement runs on to the first ';', i.e. through the first command
+					bare = bare.substring(6).trim();
+				}
+			}
+			if (bare.length() == 0)
+				continue;
+			if (nexus == false)
+				return statement.append(';').toString();
+			String keyword = firstWord(bare).toLowerCase();
+			if (keyword.equals("begin")) {
+				intrees = firstWord(bare.substring(5).trim()).equalsIgnoreCase("trees");
+				translation = null;
+			} else if (keyword.equals("end") || keyword.equals("endblock")) {
+				intrees = false;
+			} else if (intrees && keyword.equals("translate")) {
+				translation = parseTranslation(bare.substring(keyword.length()));
+			} else if (intrees && (keyword.equals("tree") || keyword.equals("utree"))) {
+				// keep the comments of the tree itself (e.g. [&R]); NewickReader skips them
+				int eq = indexOutsideQuotes(statement, '=');
+				if (eq < 0)
+					throw new IOException("tree command without '=': " + bare);
+				return statement.substring(eq + 1) + ";";
+			}
+		}
+	}
+
+	/**
+	 * Reads up to the next ';' that is not in a quoted label or a comment into `statement` (without the ';')
+	 * @return false if the input held nothing more
+	 */
+	private boolean nextStatement() throws IOException {
+		statement.setLength(0);
+		boolean quoted = false;
+		boolean comment = false;
+		int c;
+		while ((c = in.read()) != -1) {
+			if (comment) {
+				if (c == ']')
+					comment = false;
+			} else if (quoted) {
+				if (c == '\'')
+					quoted = false;
+			} else if (c == '\'') {
+				quoted = true;
+			} else if (c == '[') {
+				comment = true;
+			} else if (c == ';') {
+				return true;
+			}
+			statement.append((char) c);
+		}
+		return statement.toString().trim().length() > 0;
+	}
+
+	/**
+	 * @return `s` without its [comments] (quoted labels are kept as they are)
+	 */
+	private static String stripComments(CharSequence s){
+		StringBuilder sb = new StringBuilder(s.length());
+		boolean quoted = false;
+		boolean comment = false;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (comment) {
+				if (c == ']')
+					comment = false;
+				continue;
+			}
+			if (quoted == false && c == '[') {
+				comment = true;
+				continue;
+			}
+			if (c == '\'')
+				quoted = !quoted;
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private static int indexOutsideQuotes(CharSequence s, char target){
+		boolean quoted = false;
+		boolean comment = false;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (comment) {
+				if (c == ']')
+					comment = false;
+			} else if (c == '\'') {
+				quoted = !quoted;
+			} else if (quoted == false && c == '[') {
+				comment = true;
+			} else if (quoted == false && c == target) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static String firstWord(String s){
+		int end = 0;
+		while (end < s.length() && Character.isWhitespace(s.charAt(end)) == false)
+			end++;
+		return s.substring(0, end);
+	}
+
+	/**
+	 * @return the label -> name pairs of the body of a TRANSLATE command ("1 'Homo sapiens', 2 Pan, ...")
+	 */
+	private static Map<String,String> parseTranslation(String body) throws IOException {
+		HashMap<String,String> map = new HashMap<String,String>();
+		ArrayList<String> words = new ArrayList<String>(2);
+		StringBuilder word = new StringBuilder();
+		boolean quoted = false;
+		boolean inword = false;
+		for (int i = 0; i <= body.length(); i++) {
+			char c = i < body.length() ? body.charAt(i) : ',';
+			if (quoted) {
+				if (c == '\'') {
+					if (i + 1 < body.length() && body.charAt(i + 1) == '\'') {
+						word.append('\'');
+						i++;
+					} else {
+						quoted = false;
+					}
+				} else {
+					word.append(c);
+				}
+			} else if (c == '\'') {
+				quoted = true;
+				inword = true;
+			} else if (c == ',' || Character.isWhitespace(c)) {
+				if (inword) {
+					words.add(word.toString());
+					word.setLength(0);
+					inword = false;
+				}
+				if (c == ',') {
+					if (words.size() == 2)
+						map.put(words.get(0), words.get(1));
+					else if (words.isEmpty() == false)
+						throw new IOException("bad translate entry: " + words);
+					words.clear();
+				}
+			} else {
+				word.append(c);
+				inword = true;
+			}
+		}
+		return map;
+	}
 }
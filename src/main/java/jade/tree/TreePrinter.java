@@ -1,7 +1,8 @@
 package jade.tree;
 
 import java.io.*;
-import java.text.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.*;
 
 public class TreePrinter {
@@ -243,91 +244,95 @@ public class TreePrinter {
 	 * 
 	 */
 
-	private JadeTree inTree;
+	private static final long [] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L,
+			1000000000L, 10000000000L, 100000000000L, 1000000000000L, 10000000000000L, 100000000000000L,
+			1000000000000000L, 10000000000000000L, 100000000000000000L, 1000000000000000000L};
 
-	private NumberFormat nf = NumberFormat.getInstance(Locale.ENGLISH);
-
-	private String nhString;
+	private static final int NH_DECIMALS = 8;
 
+	/**
+	 * @return the newick string of `intree` with internal labels and branch lengths (8 decimals),
+	 *		without a terminating ';'
+	 */
 	public String printNH(JadeTree intree) {
-		inTree = intree;
-		nhString = "";
-		PrintStream ps = new PrintStream(System.out);
-		printNH(new PrintWriter(ps), inTree.getRoot(), true, true, 0, false);
-		return nhString;
+		StringBuilder sb = new StringBuilder();
+		try {
+			printNH(intree, sb, true, true);
+		} catch (IOException ioe) {
+			throw new RuntimeException(ioe); // a StringBuilder does not throw
+		}
+		return sb.toString();
 	}
-	/*
-	private void printNH(PrintWriter out, Node node, boolean printLengths,
-	        boolean printInternalLabels) {
-		printNH(out, node, printLengths, printInternalLabels, 0, true);
-	}*/
-
-	private int printNH(PrintWriter out, JadeNode node, boolean printLengths,
-	        boolean printInternalLabels, int column, boolean breakLines) {
-		if (breakLines)
-			column = breakLine(out, column);
-		if (!node.isExternal()) {
-			out.print("(");
-			nhString = nhString + "(";
-			column++;
-
-			for (int i = 0; i < node.getChildCount(); i++) {
-				if (i != 0) {
-					out.print(",");
-					nhString = nhString + ",";
-					column++;
-				}
 
-				column = printNH(out, node.getChild(i), printLengths,
-				        printInternalLabels, column, breakLines);
-			}
-
-			out.print(")");
-			nhString = nhString + ")";
-			column++;
-		}
-		if (!node.isTheRoot()) {
-			if (node.isExternal() || printInternalLabels) {
-				if (breakLines)
-					column = breakLine(out, column);
-
-				String id = node.getName();
-				out.print(id);
-				nhString = nhString + id;
-				column += id.length();
+	/**
+	 * Writes the newick string of `intree` to `out` (e.g. a Writer), without a terminating ';'.
+	 *	The label and length of the root are not written. Branch lengths have 8 decimals.
+	 *
+	 * The tree is walked without recursion, numbers are formatted without allocating, and no state is
+	 *	shared between calls, so trees of any depth and size can be written from several threads at once.
+	 */
+	public void printNH(JadeTree intree, Appendable out, boolean printLengths, boolean printInternalLabels) throws IOException {
+		JadeNode root = intree.getRoot();
+		if (root == null)
+			return;
+		ArrayList<JadeNode> stack = new ArrayList<JadeNode>();
+		int [] nextchild = new int[16];
+		stack.add(root);
+		while (stack.isEmpty() == false) {
+			int top = stack.size() - 1;
+			JadeNode node = stack.get(top);
+			if (nextchild[top] < node.getChildCount()) {
+				out.append(nextchild[top] == 0 ? '(' : ',');
+				JadeNode child = node.getChild(nextchild[top]++);
+				if (top + 1 == nextchild.length)
+					nextchild = Arrays.copyOf(nextchild, nextchild.length * 2);
+				nextchild[top + 1] = 0;
+				stack.add(child);
+				continue;
 			}
-			if (printLengths) {
-				out.print(":");
-				nhString = nhString + ":";
-				column++;
-				if (breakLines)
-					column = breakLine(out, column);
-				column += displayDecimalNH(out, node.getBL(), 8);
+			stack.remove(top);
+			if (node.isExternal() == false)
+				out.append(')');
+			if (node.isTheRoot() == false) {
+				if (node.isExternal() || printInternalLabels)
+					out.append(node.getName());
+				if (printLengths) {
+					out.append(':');
+					appendDecimal(out, node.getBL(), NH_DECIMALS);
+				}
 			}
 		}
-		return column;
 	}
 
-	private int breakLine(PrintWriter out, int column) {
-		if (column > 70) {
-			out.println();
-			nhString = nhString + "\n";
-			column = 0;
+	/**
+	 * Appends `number` with exactly `decimals` (at most 18) digits after the point and no grouping, rounding
+	 *	half up. Does not allocate unless the scaled number is too large to be held exactly in a double
+	 *	(2^53, about 9e7 with 8 decimals) or is not finite. For numbers above about 1e6 the last digit can
+	 *	differ from NumberFormat when the number is within rounding error of a half.
+	 */
+	static void appendDecimal(Appendable out, double number, int decimals) throws IOException {
+		double scaled = Math.abs(number) * POWERS_OF_TEN[decimals];
+		if (Double.isNaN(number) || Double.isInfinite(number) || scaled >= 9007199254740992.0) {
+			if (Double.isNaN(number) || Double.isInfinite(number))
+				out.append(Double.toString(number));
+			else
+				out.append(BigDecimal.valueOf(number).setScale(decimals, RoundingMode.HALF_UP).toPlainString());
+			return;
 		}
-
-		return column;
-	}
-
-	private int displayDecimalNH(PrintWriter out, double number, int width) {
-		String s = getDecimalStringNH(number, width);
-		out.print(s);
-		nhString = nhString + s;
-		return s.length();
-	}
-
-	private synchronized String getDecimalStringNH(double number, int width) {
-		nf.setMinimumFractionDigits(width);
-		nf.setMaximumFractionDigits(width);
-		return nf.format(number);
+		long digits = Math.round(scaled);
+		if (number < 0 && digits != 0)
+			out.append('-');
+		long intpart = digits / POWERS_OF_TEN[decimals];
+		long fracpart = digits % POWERS_OF_TEN[decimals];
+		int intdigits = 1;
+		while (intdigits < POWERS_OF_TEN.length && intpart >= POWERS_OF_TEN[intdigits])
+			intdigits++;
+		for (int d = intdigits - 1; d >= 0; d--)
+			out.append((char) ('0' + (intpart / POWERS_OF_TEN[d]) % 10));
+		if (decimals == 0)
+			return;
+		out.append('.');
+		for (int d = decimals - 1; d >= 0; d--)
+			out.append((char) ('0' + (fracpart / POWERS_OF_TEN[d]) % 10));
 	}
 }
@@ -1,8 +1,434 @@
 package jade.tree;
 
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Generates synthetic inputs for load testing: birth-death (and Yule) trees, and taxonomy tables in the
+ *	format read by TaxonomyLoader, with optional synonym files and second-source variants.
+ *
+ * The same seed always gives the same output.
+ */
 public class TreeSimulator {
+	/**
+	 * The fraction of new taxa that are higher taxa (i.e. can have children) rather than species
+	 */
+	private static final double HIGHER_FRACTION = 0.15;
+
+	/**
+	 * The chance that a new species joins a higher taxon in proportion to the species it already has,
+	 *	rather than a uniformly chosen one; this gives the long tailed fan-out of real taxonomies
+	 */
+	private static final double PREFERENTIAL_ATTACHMENT = 0.7;
+
+	/**
+	 * Name syllables: 16 consonants x 4 vowels, so a 4 syllable name encodes 24 bits
+	 */
+	private static final String [] SYLLABLES = new String[64];
+	static {
+		String consonants = "bcdfghlmnprstvxz";
+		String vowels = "aeio";
+		for (int i = 0; i < 64; i++)
+			SYLLABLES[i] = "" + consonants.charAt(i >> 2) + vowels.charAt(i & 3);
+	}
+
+	private static final int NAME_SYLLABLES = 4;
+	private static final int MAX_NAMES = 1 << (6 * NAME_SYLLABLES);
+
+	private final Random rand;
+
 	public TreeSimulator(){
-		
+		this(System.currentTimeMillis());
+	}
+
+	public TreeSimulator(long seed){
+		rand = new Random(seed);
+	}
+
+	/**
+	 * @return a pure birth tree with `ntips` tips named t1..tn, with branch lengths in units of time
+	 */
+	public JadeTree yuleTree(int ntips, double birthrate){
+		return birthDeathTree(ntips, birthrate, 0.0);
+	}
+
+	/**
+	 * Simulates forward in time from a single split until `ntips` lineages are alive, then removes the
+	 *	extinct lineages. Runs that die out before reaching `ntips` are restarted.
+	 * @return a tree with `ntips` tips named t1..tn, with branch lengths in units of time
+	 */
+	public JadeTree birthDeathTree(int ntips, double birthrate, double deathrate){
+		if (ntips < 2 || birthrate <= 0.0 || deathrate < 0.0 || deathrate >= birthrate)
+			throw new IllegalArgumentException("need at least 2 tips and 0 <= deathrate < birthrate");
+		JadeNode root = null;
+		while (root == null)
+			root = simulateBirthDeath(ntips, birthrate, deathrate);
+		JadeTree tree = new JadeTree(root);
+		for (int i = 0; i < tree.getExternalNodeCount(); i++)
+			tree.getExternalNode(i).setName("t" + (i + 1));
+		return tree;
+	}
+
+	/**
+	 * @return the root of the pruned tree, or null if every lineage went extinct
+	 */
+	private JadeNode simulateBirthDeath(int ntips, double birthrate, double deathrate){
+		JadeNode root = new JadeNode();
+		ArrayList<JadeNode> alive = new ArrayList<JadeNode>(ntips);
+		double [] starts = new double[ntips + 1];
+		ArrayList<JadeNode> extinct = new ArrayList<JadeNode>();
+		for (int i = 0; i < 2; i++) {
+			JadeNode child = new JadeNode(root);
+			root.getChildren().add(child);
+			alive.add(child);
+		}
+		double time = 0.0;
+		double totalrate = birthrate + deathrate;
+		while (alive.size() < ntips) {
+			int k = alive.size();
+			if (k == 0)
+				return null;
+			time += exponential(totalrate * k);
+			int i = rand.nextInt(k);
+			JadeNode lineage = alive.get(i);
+			lineage.setBL(time - starts[i]);
+			if (rand.nextDouble() * totalrate < birthrate) {
+				JadeNode left = new JadeNode(lineage);
+				JadeNode right = new JadeNode(lineage);
+				lineage.getChildren().add(left);
+				lineage.getChildren().add(right);
+				alive.set(i, left);
+				starts[i] = time;
+				alive.add(right);
+				starts[k] = time;
+			} else {
+				extinct.add(lineage);
+				alive.set(i, alive.get(k - 1));
+				starts[i] = starts[k - 1];
+				alive.remove(k - 1);
+			}
+		}
+		// the tips end where the next event would have happened
+		double end = time + exponential(totalrate * alive.size());
+		for (int i = 0; i < alive.size(); i++)
+			alive.get(i).setBL(end - starts[i]);
+		for (JadeNode dead : extinct)
+			root = pruneLineage(root, dead);
+		root.setBL(0.0);
+		return root;
+	}
+
+	/**
+	 * Removes the tip `dead`, joining its sibling to its grandparent so that the tree stays binary
+	 * @return the root of the tree, which changes if a child of the root is removed
+	 */
+	private static JadeNode pruneLineage(JadeNode root, JadeNode dead){
+		JadeNode parent = dead.getParent();
+		parent.removeChild(dead);
+		dead.setParent(null);
+		if (parent.getChildCount() != 1)
+			return root;
+		JadeNode sibling = parent.getChild(0);
+		sibling.setBL(sibling.getBL() + parent.getBL());
+		JadeNode grandparent = parent.getParent();
+		if (grandparent == null) {
+			sibling.setParent(null);
+			return sibling;
+		}
+		grandparent.getChildren().set(grandparent.getChildren().indexOf(parent), sibling);
+		sibling.setParent(grandparent);
+		return root;
+	}
+
+	private double exponential(double rate){
+		return -Math.log(1.0 - rand.nextDouble()) / rate;
+	}
+
+	/**
+	 * Grows a taxonomy of `ntaxa` taxa (see SimulatedTaxonomy)
+	 * @param homonymrate the fraction of higher taxa that reuse the name of an earlier higher taxon
+	 */
+	public SimulatedTaxonomy simulateTaxonomy(int ntaxa, double homonymrate){
+		return new SimulatedTaxonomy(ntaxa, homonymrate);
+	}
+
+	/**
+	 * A synthetic taxonomy, grown one taxon at a time from the root "life".
+	 *
+	 * New higher taxa join a uniformly chosen higher taxon, so depth grows with the log of the number of
+	 *	taxa (about 11 on average, and around 30 at most, for 5 million taxa). Species mostly join higher
+	 *	taxa in proportion to the species they already have, which gives the few very large and many small
+	 *	genera of real taxonomies. Higher taxa get unique made-up names (unless they are homonyms) and
+	 *	species are named "Parentname epithet". Taxa are numbered so that parents come before their
+	 *	children; taxon i has the id i + 1 in the tables.
+	 */
+	public class SimulatedTaxonomy {
+		private final int ntaxa;
+		private final int [] parents;
+		private final boolean [] higher;
+		private final int [] nameindex; // the name of a higher taxon, the epithet of a species
+		private int nhighernames = 0;
+		private int nepithets = 0;
+		private int nhomonyms = 0;
+
+		private SimulatedTaxonomy(int ntaxa, double homonymrate){
+			if (ntaxa < 2 || ntaxa >= MAX_NAMES / 2)
+				throw new IllegalArgumentException("ntaxa must be between 2 and " + (MAX_NAMES / 2));
+			this.ntaxa = ntaxa;
+			parents = new int[ntaxa];
+			higher = new boolean[ntaxa];
+			nameindex = new int[ntaxa];
+			int [] highertaxa = new int[ntaxa];
+			int nhigher = 0;
+			parents[0] = -1;
+			higher[0] = true;
+			highertaxa[nhigher++] = 0;
+			for (int i = 1; i < ntaxa; i++) {
+				if (nhigher < 2 || rand.nextDouble() < HIGHER_FRACTION) {
+					parents[i] = highertaxa[rand.nextInt(nhigher)];
+					higher[i] = true;
+					if (nhigher > 1 && rand.nextDouble() < homonymrate) {
+						nameindex[i] = nameindex[highertaxa[1 + rand.nextInt(nhigher - 1)]];
+						nhomonyms += 1;
+					} else {
+						nameindex[i] = nhighernames++;
+					}
+					highertaxa[nhigher++] = i;
+				} else {
+					int parent = 0;
+					if (rand.nextDouble() < PREFERENTIAL_ATTACHMENT)
+						parent = parents[1 + rand.nextInt(i - 1)];
+					// species need a named genus, so never go directly under the root
+					if (parent == 0)
+						parent = highertaxa[1 + rand.nextInt(nhigher - 1)];
+					parents[i] = parent;
+					nameindex[i] = nepithets++;
+				}
+			}
+		}
+
+		public int size(){return ntaxa;}
+
+		/**
+		 * @return the parent of taxon `i`, or -1 for the root
+		 */
+		public int getParent(int i){return parents[i];}
+
+		public boolean isHigherTaxon(int i){return higher[i];}
+
+		public String getName(int i){
+			if (i == 0)
+				return "life";
+			if (higher[i])
+				return higherName(nameindex[i]);
+			return higherName(nameindex[parents[i]]) + " " + epithet(nameindex[i]);
+		}
+
+		/**
+		 * @return the number of higher taxa that repeat the name of an earlier one
+		 */
+		public int getHomonymCount(){return nhomonyms;}
+
+		/**
+		 * @return a one line summary of the size and shape of the taxonomy
+		 */
+		public String getSummary(){
+			int [] depths = new int[ntaxa];
+			int [] childcounts = new int[ntaxa];
+			int maxdepth = 0;
+			long totaldepth = 0;
+			int nhigher = 1;
+			for (int i = 1; i < ntaxa; i++) {
+				depths[i] = depths[parents[i]] + 1;
+				childcounts[parents[i]] += 1;
+				maxdepth = Math.max(maxdepth, depths[i]);
+				totaldepth += depths[i];
+				if (higher[i])
+					nhigher += 1;
+			}
+			int maxchildren = 0;
+			for (int i = 0; i < ntaxa; i++)
+				maxchildren = Math.max(maxchildren, childcounts[i]);
+			return ntaxa + " taxa (" + nhigher + " higher taxa), depth " + String.format("%.1f", totaldepth / (double) ntaxa)
+					+ " on average and " + maxdepth + " at most, up to " + maxchildren + " children, " + nhomonyms + " homonyms";
+		}
+
+		/**
+		 * Writes the taxonomy as "id\t|\tparent id\t|\tname" lines ("id\t|\t\t|\tname" for the root), the
+		 *	format of TaxonomyLoader.initializeTaxonomyIntoGraph
+		 */
+		public void writeTable(String filename) throws IOException {
+			writeTable(filename, parents, 0);
+		}
+
+		/**
+		 * Writes a second source for the same taxa (same names and root, ids offset by the number of taxa)
+		 *	in which a fraction `conflictrate` of the taxa have a different parent, for
+		 *	TaxonomyLoader.addAdditionalTaxonomyToGraphNEW. A moved taxon always goes to a higher taxon
+		 *	outside its own subtree, so the second source is still a tree.
+		 * @return the number of taxa that were moved
+		 */
+		public int writeSecondSource(String filename, double conflictrate) throws IOException {
+			int [] secondparents = parents.clone();
+			int moved = 0;
+			for (int i = 1; i < ntaxa; i++) {
+				if (rand.nextDouble() >= conflictrate)
+					continue;
+				for (int attempt = 0; attempt < 10; attempt++) {
+					int candidate = 1 + rand.nextInt(ntaxa - 1);
+					if (higher[candidate] == false || candidate == secondparents[i] || isInSubtree(secondparents, candidate, i))
+						continue;
+					secondparents[i] = candidate;
+					moved += 1;
+					break;
+				}
+			}
+			writeTable(filename, secondparents, ntaxa);
+			return moved;
+		}
+
+		/**
+		 * @return true if `node` is `ancestor` or one of its descendants
+		 */
+		private boolean isInSubtree(int [] parentarray, int node, int ancestor){
+			for (int cur = node; cur != -1; cur = parentarray[cur]) {
+				if (cur == ancestor)
+					return true;
+			}
+			return false;
+		}
+
+		private void writeTable(String filename, int [] parentarray, int idoffset) throws IOException {
+			Writer out = new BufferedWriter(new FileWriter(filename), 1 << 16);
+			try {
+				StringBuilder line = new StringBuilder();
+				for (int i = 0; i < ntaxa; i++) {
+					line.setLength(0);
+					line.append(i + 1 + idoffset).append("\t|\t");
+					if (parentarray[i] != -1)
+						line.append(parentarray[i] + 1 + idoffset);
+					line.append("\t|\t").append(getName(i)).append('\n');
+					out.write(line.toString());
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		/**
+		 * Writes "id\t|\tname\t|\ttype" lines, the synonym file format of TaxonomyLoader, for a fraction
+		 *	`synonymrate` of the taxa. Most synonyms are new names ("synonym"), the rest are the valid name
+		 *	with one letter doubled ("misspelling").
+		 * @return the number of synonyms written
+		 */
+		public int writeSynonyms(String filename, double synonymrate) throws IOException {
+			Writer out = new BufferedWriter(new FileWriter(filename), 1 << 16);
+			int count = 0;
+			try {
+				for (int i = 1; i < ntaxa; i++) {
+					if (rand.nextDouble() >= synonymrate)
+						continue;
+					String name;
+					String type;
+					if (rand.nextDouble() < 0.8) {
+						if (higher[i])
+							name = higherName(nhighernames++);
+						else
+							name = higherName(nameindex[parents[i]]) + " " + epithet(nepithets++);
+						type = "synonym";
+					} else {
+						String valid = getName(i);
+						int pos = 1 + rand.nextInt(valid.length() - 1);
+						if (valid.charAt(pos) == ' ')
+							pos -= 1;
+						name = valid.substring(0, pos) + valid.charAt(pos) + valid.substring(pos);
+						type = "misspelling";
+					}
+					out.write((i + 1) + "\t|\t" + name + "\t|\t" + type + "\n");
+					count += 1;
+				}
+			} finally {
+				out.close();
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * @return the capitalized made-up name with index `index` (distinct indexes give distinct names)
+	 */
+	private static String higherName(int index){
+		String name = encodeName(index, 0x9E3779B1L);
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+
+	private static String epithet(int index){
+		return encodeName(index, 0x5851F42DL);
+	}
+
+	/**
+	 * Multiplying by an odd number is a bijection modulo a power of two, so the names are distinct but
+	 *	do not look sequential
+	 */
+	private static String encodeName(int index, long multiplier){
+		long code = ((index + 1) * multiplier) & (MAX_NAMES - 1);
+		StringBuilder sb = new StringBuilder(2 * NAME_SYLLABLES);
+		for (int s = 0; s < NAME_SYLLABLES; s++)
+			sb.append(SYLLABLES[(int) ((code >> (6 * s)) & 63)]);
+		return sb.toString();
+	}
+
+	/**
+	 * @param args yule ntips outfile [birthrate] [seed]
+	 *		| bd ntips birthrate deathrate outfile [seed]
+	 *		| taxonomy ntaxa outprefix [homonymrate] [conflictrate] [synonymrate] [seed]
+	 */
+	public static void main(String [] args) throws IOException {
+		if (args.length >= 3 && args[0].equals("yule")) {
+			double birthrate = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+			TreeSimulator sim = args.length > 4 ? new TreeSimulator(Long.parseLong(args[4])) : new TreeSimulator();
+			writeTree(sim.yuleTree(Integer.parseInt(args[1]), birthrate), args[2]);
+		} else if (args.length >= 5 && args[0].equals("bd")) {
+			TreeSimulator sim = args.length > 5 ? new TreeSimulator(Long.parseLong(args[5])) : new TreeSimulator();
+			writeTree(sim.birthDeathTree(Integer.parseInt(args[1]), Double.parseDouble(args[2]), Double.parseDouble(args[3])), args[4]);
+		} else if (args.length >= 3 && args[0].equals("taxonomy")) {
+			double homonymrate = args.length > 3 ? Double.parseDouble(args[3]) : 0.01;
+			double conflictrate = args.length > 4 ? Double.parseDouble(args[4]) : 0.0;
+			double synonymrate = args.length > 5 ? Double.parseDouble(args[5]) : 0.0;
+			TreeSimulator sim = args.length > 6 ? new TreeSimulator(Long.parseLong(args[6])) : new TreeSimulator();
+			long start = System.currentTimeMillis();
+			SimulatedTaxonomy tax = sim.simulateTaxonomy(Integer.parseInt(args[1]), homonymrate);
+			System.out.println(tax.getSummary());
+			tax.writeTable(args[2] + ".tsv");
+			System.out.println("wrote " + args[2] + ".tsv");
+			if (conflictrate > 0.0) {
+				int moved = tax.writeSecondSource(args[2] + ".second.tsv", conflictrate);
+				System.out.println("wrote " + args[2] + ".second.tsv (" + moved + " taxa moved)");
+			}
+			if (synonymrate > 0.0) {
+				int count = tax.writeSynonyms(args[2] + ".synonyms.tsv", synonymrate);
+				System.out.println("wrote " + args[2] + ".synonyms.tsv (" + count + " synonyms)");
+			}
+			System.out.println("done in " + (System.currentTimeMillis() - start) + " ms");
+		} else {
+			System.out.println("arguments should be: yule ntips outfile [birthrate] [seed]");
+			System.out.println("                  or bd ntips birthrate deathrate outfile [seed]");
+			System.out.println("                  or taxonomy ntaxa outprefix [homonymrate] [conflictrate] [synonymrate] [seed]");
+		}
+	}
+
+	private static void writeTree(JadeTree tree, String filename) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(filename));
+		try {
+			new TreePrinter().printNH(tree, out, true, false);
+			out.write(";\n");
+		} finally {
+			out.close();
+		}
+		System.out.println("wrote a tree of " + tree.getExternalNodeCount() + " tips to " + filename);
 	}
-	
 }
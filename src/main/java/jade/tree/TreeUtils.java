@@ -1,87 +1,191 @@
 package jade.tree;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
 public class TreeUtils {
 	/**
-	 * Sets the DistanceFromTip for each node in the tree to be the max distance
-	 *	to a tip that is in the subtree descended from that node.
+	 * Sets the DistanceToTip for each node in the tree to be the greatest distance from the root to a tip,
+	 *	less the distance from the root to the node (i.e. the height of the node if the tree is ultrametric).
+	 *	The branch length of `root` itself is only counted when it is the root of the tree.
 	 *
-	 * @todo: this could be more efficiently done as postorder traversal, rather than a preorder
+	 * One postorder pass finds the greatest distance and one preorder pass sets the heights; both run over
+	 *	a preorder list, so this is O(N) and does not recurse.
 	 */
 	public static void setDistanceToTips(JadeNode root) {
-		setDistanceToTips(root, getGreatestDistance(root));
+		Preorder pre = new Preorder(root);
+		int n = pre.nodes.size();
+		if (n == 0)
+			return;
+		// greatest distance from each node down to a tip, not counting the node's own branch
+		double [] below = new double[n];
+		for (int i = n - 1; i > 0; i--) {
+			double d = below[i] + pre.nodes.get(i).getBL();
+			if (d > below[pre.parents[i]])
+				below[pre.parents[i]] = d;
+		}
+		if (root.isTheRoot())
+			root.setDistanceToTip(below[0] + root.getBL());
+		else
+			root.setDistanceToTip(below[0]);
+		for (int i = 1; i < n; i++) {
+			JadeNode cur = pre.nodes.get(i);
+			cur.setDistanceToTip(pre.nodes.get(pre.parents[i]).getDistanceToTip() - cur.getBL());
+		}
 	}
 
-	private static double getGreatestDistance(JadeNode inNode) {
-		double distance = 0.0;
-		if (inNode.isInternal()) {
-			if (inNode.isTheRoot()) {
-				distance = inNode.getBL();
-			}
-			double posmax = 0.0;
-			for (int i = 0; i < inNode.getChildCount(); i++) {
-				double posmax2 = getGreatestDistance(inNode.getChild(i));
-				if (posmax2 > posmax)
-					posmax = posmax2;
-			}
-			distance += posmax;
-			return distance;
-		} else
-			return inNode.getBL();
+	/**
+	 * Sets the DistanceFromTip for each tip in the tree to be the distance
+	 *	from that tip to the root of the tree (including the branch length of the root).
+	 *	One preorder pass, O(N).
+	 */
+	public static void setDistanceFromTip(JadeTree tree) {
+		Preorder pre = new Preorder(tree.getRoot());
+		int n = pre.nodes.size();
+		double [] fromroot = new double[n];
+		for (int i = 0; i < n; i++) {
+			JadeNode cur = pre.nodes.get(i);
+			fromroot[i] = cur.getBL() + (i == 0 ? 0.0 : fromroot[pre.parents[i]]);
+			if (cur.isExternal())
+				cur.setDistanceFromTip(fromroot[i]);
+		}
 	}
 
 	/**
-	 * Sets the DistanceFromTip for each node in the tree to be the max distance
-	 *	to a tip that is in the subtree descended from that node.
-	 *
-	 * @todo: this could be more efficiently done as postorder traversal, rather than a preorder
+	 * Sets the DistanceToTip for each node in the tree to be the max distance
+	 *	to a tip that is in the subtree descended from that node, including the node's own branch length.
+	 *	One postorder pass, O(N); earlier values of DistanceToTip are ignored.
 	 */
-	private static void setDistanceToTips(JadeNode inNode, double newHeight) {
-		if (inNode.isTheRoot() == false) {
-			newHeight -= inNode.getBL();
-			inNode.setDistanceToTip(newHeight);
-		} else {
-			inNode.setDistanceToTip(newHeight);
-		}
-		for (int i = 0; i < inNode.getChildCount(); i++) {
-			setDistanceToTips(inNode.getChild(i), newHeight);
+	public static void setDistanceToTip(JadeTree tree){
+		Preorder pre = new Preorder(tree.getRoot());
+		int n = pre.nodes.size();
+		// greatest distance from each node down to a tip, not counting the node's own branch
+		double [] below = new double[n];
+		for (int i = n - 1; i >= 0; i--) {
+			JadeNode cur = pre.nodes.get(i);
+			double d = below[i] + cur.getBL();
+			cur.setDistanceToTip(d);
+			if (i > 0 && d > below[pre.parents[i]])
+				below[pre.parents[i]] = d;
 		}
 	}
+
 	/**
-	 * Sets the DistanceFromTip for each tip in the tree to be the distance
-	 *	from that tip to the root of the tree
+	 * The nodes of a subtree in preorder, with the position of each node's parent, built without recursion.
+	 *	Walking the list backwards visits children before their parents.
 	 */
-	public static void setDistanceFromTip(JadeTree tree) {
-		for (int i = 0; i < tree.getExternalNodeCount(); i++) {
-			JadeNode cur = tree.getExternalNode(i);
-			double curh = 0.0;
-			while (cur != null) {
-				curh += cur.getBL();
-				cur = cur.getParent();
+	private static class Preorder {
+		final ArrayList<JadeNode> nodes = new ArrayList<JadeNode>();
+		int [] parents = new int[16]; // position of the parent in nodes, -1 for the first node
+
+		Preorder(JadeNode root){
+			if (root == null)
+				return;
+			ArrayList<JadeNode> stack = new ArrayList<JadeNode>();
+			int [] stackparents = new int[16];
+			stack.add(root);
+			stackparents[0] = -1;
+			while (stack.isEmpty() == false) {
+				int top = stack.size() - 1;
+				JadeNode cur = stack.remove(top);
+				int pos = nodes.size();
+				if (pos == parents.length)
+					parents = Arrays.copyOf(parents, pos * 2);
+				parents[pos] = stackparents[top];
+				nodes.add(cur);
+				for (int i = cur.getChildCount() - 1; i >= 0; i--) {
+					if (stack.size() == stackparents.length)
+						stackparents = Arrays.copyOf(stackparents, stackparents.length * 2);
+					stackparents[stack.size()] = pos;
+					stack.add(cur.getChild(i));
+				}
 			}
-			tree.getExternalNode(i).setDistanceFromTip(curh);
 		}
 	}
 
 	/**
-	 * Sets the DistanceFromTip for each node in the tree to be the max distance
-	 *	to a tip that is in the subtree descended from that node.
-	 *
-	 * @todo: this only works if the starting values of the internal node's
-	 *		distanceToTip members are <= the correct value (initializing them to zero would be safer).
+	 * Times the distance computations on a ladder (caterpillar) and a balanced tree, against walking from
+	 *	every tip to the root
+	 * @param args [number of tips]
 	 */
-	public static void setDistanceToTip(JadeTree tree){
+	public static void main(String [] args) {
+		int ntips = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		Random rand = new Random(42);
+		benchmark("ladder", ladderTree(ntips, rand));
+		benchmark("balanced", balancedTree(ntips, rand));
+	}
+
+	private static void benchmark(String label, JadeTree tree) {
+		long start = System.nanoTime();
+		setDistanceToTip(tree);
+		long totip = System.nanoTime() - start;
+		double roottotip = tree.getRoot().getDistanceToTip();
+		start = System.nanoTime();
+		setDistanceFromTip(tree);
+		long fromtip = System.nanoTime() - start;
+		start = System.nanoTime();
+		setDistanceToTips(tree.getRoot());
+		long totips = System.nanoTime() - start;
+		start = System.nanoTime();
+		double walked = 0.0;
 		for (int i = 0; i < tree.getExternalNodeCount(); i++) {
-			double curh = 0.0;
-			JadeNode cur = tree.getExternalNode(i);
-			cur.setDistanceToTip(curh);
-			while (cur != null) {
-				curh += cur.getBL();
-				if(cur.getDistanceToTip()<curh)
-					cur.setDistanceToTip(curh);
-				cur = cur.getParent();
-			}
+			double d = 0.0;
+			for (JadeNode cur = tree.getExternalNode(i); cur != null; cur = cur.getParent())
+				d += cur.getBL();
+			walked = Math.max(walked, d);
+		}
+		long walk = System.nanoTime() - start;
+		System.out.println(label + " (" + tree.getExternalNodeCount() + " tips): setDistanceToTip " + totip / 1000000
+				+ " ms, setDistanceFromTip " + fromtip / 1000000 + " ms, setDistanceToTips " + totips / 1000000
+				+ " ms; walking every tip to the root " + walk / 1000000 + " ms"
+				+ (Math.abs(walked - roottotip) < 1e-6 ? "" : " (MISMATCH " + walked + " vs " + roottotip + ")"));
+	}
 
+	private static JadeTree ladderTree(int ntips, Random rand) {
+		JadeNode root = new JadeNode();
+		JadeNode cur = root;
+		for (int i = 0; i < ntips - 1; i++) {
+			JadeNode tip = new JadeNode(cur);
+			tip.setName("t" + i);
+			tip.setBL(rand.nextDouble());
+			cur.getChildren().add(tip);
+			// the other child carries the rest of the ladder, or is the last tip
+			JadeNode rest = new JadeNode(cur);
+			if (i == ntips - 2)
+				rest.setName("t" + (i + 1));
+			rest.setBL(rand.nextDouble());
+			cur.getChildren().add(rest);
+			cur = rest;
+		}
+		return new JadeTree(root);
+	}
+
+	private static JadeTree balancedTree(int ntips, Random rand) {
+		// join the current level in pairs until one node is left
+		ArrayList<JadeNode> level = new ArrayList<JadeNode>();
+		for (int i = 0; i < ntips; i++) {
+			JadeNode tip = new JadeNode();
+			tip.setName("t" + i);
+			tip.setBL(rand.nextDouble());
+			level.add(tip);
+		}
+		while (level.size() > 1) {
+			ArrayList<JadeNode> next = new ArrayList<JadeNode>();
+			for (int i = 0; i < level.size(); i += 2) {
+				if (i + 1 == level.size()) {
+					next.add(level.get(i));
+					break;
+				}
+				JadeNode nd = new JadeNode();
+				nd.setBL(rand.nextDouble());
+				nd.addChild(level.get(i));
+				nd.addChild(level.get(i + 1));
+				next.add(nd);
+			}
+			level = next;
 		}
+		level.get(0).setBL(0.0);
+		return new JadeTree(level.get(0));
 	}
-	
 }
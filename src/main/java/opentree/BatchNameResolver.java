@@ -0,0 +1,102 @@
+package opentree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+
+/**
+ * Resolves many names against a "name" keyed node index at once.
+ *
+ * The names are split into batches that are looked up on a worker pool. The lookups
+ *	are plain index reads, so no transactions are needed. The nodes the workers find are added
+ *	to the TraversalCounters of the thread that calls `resolve`.
+ */
+public class BatchNameResolver {
+	private final Index<Node> index;
+	private final ExecutorService pool;
+	private final int batchsize;
+
+	// the hits of one batch with the counts of the worker that looked them up
+	private static class Batch {
+		final List<List<Node>> hits;
+		final TraversalCounters counts;
+
+		Batch(List<List<Node>> hits, TraversalCounters counts){
+			this.hits = hits;
+			this.counts = counts;
+		}
+	}
+
+	/**
+	 * @param index the index to query with the "name" key
+	 * @param pool the workers that batches are handed to, or null to resolve everything in the calling thread
+	 * @param batchsize the number of names looked up by one task
+	 */
+	public BatchNameResolver(Index<Node> index, ExecutorService pool, int batchsize){
+		this.index = index;
+		this.pool = pool;
+		this.batchsize = batchsize;
+	}
+
+	/**
+	 * @return the matching nodes (an empty list if there are none) for each of the `names`, in the same order
+	 */
+	public List<List<Node>> resolve(final List<String> names){
+		List<List<Node>> ret = new ArrayList<List<Node>>(names.size());
+		if (pool == null || names.size() <= batchsize) {
+			for (String name : names)
+				ret.add(lookup(name));
+			return ret;
+		}
+		ArrayList<Future<Batch>> batches = new ArrayList<Future<Batch>>();
+		for (int start = 0; start < names.size(); start += batchsize) {
+			final List<String> batch = names.subList(start, Math.min(start + batchsize, names.size()));
+			batches.add(pool.submit(new Callable<Batch>(){
+				public Batch call(){
+					TraversalCounters.reset();
+					List<List<Node>> hits = new ArrayList<List<Node>>(batch.size());
+					for (String name : batch)
+						hits.add(lookup(name));
+					return new Batch(hits, TraversalCounters.snapshot());
+				}
+			}));
+		}
+		try {
+			for (Future<Batch> batch : batches) {
+				Batch b = batch.get();
+				ret.addAll(b.hits);
+				TraversalCounters.add(b.counts);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while resolving names", ie);
+		} catch (ExecutionException ee) {
+			throw new RuntimeException("name lookup failed", ee.getCause());
+		}
+		return ret;
+	}
+
+	/**
+	 * @return every node indexed under `name`
+	 */
+	public List<Node> lookup(String name){
+		ArrayList<Node> nodes = new ArrayList<Node>(1);
+		IndexHits<Node> hits = index.get("name", name);
+		try {
+			for (Node nd : hits) {
+				TraversalCounters.visitNode();
+				nodes.add(nd);
+			}
+		} finally {
+			hits.close();
+		}
+		return nodes;
+	}
+}
@@ -8,31 +8,30 @@ import org.neo4j.graphdb.traversal.Evaluation;
 import org.neo4j.graphdb.traversal.Evaluator;
 
 /**
- * Neo4j Traversal Evaluator which prunes paths when it finds a node with 
- *  an indegree greater or equal the threshold set in `setChildThreshold`
+ * Neo4j Traversal Evaluator which prunes paths when it finds a node (other than
+ *  `startNode`) with an indegree greater or equal to `child_threshold`.
+ * Immutable, so one instance can be shared by concurrent traversals from the same start node.
  */
 public class ChildNumberEvaluator implements Evaluator{
-	int child_threshold = 100;
-	Node startNode = null;
-	public ChildNumberEvaluator(){}
-	public void setChildThreshold(int n){
-		child_threshold = n;
-	}
-	public void setStartNode(Node n){
-		startNode = n;
+	private final int child_threshold;
+	private final long startNodeId;
+	public ChildNumberEvaluator(Node startNode, int child_threshold){
+		this.startNodeId = startNode.getId();
+		this.child_threshold = child_threshold;
 	}
 	public Evaluation evaluate(Path arg0) {
 		boolean tthresh = false;
 		int count = 0;
 		// @query Do we need to specify the type of relationship?
 		for(@SuppressWarnings("unused") Relationship rel: arg0.endNode().getRelationships(Direction.INCOMING)){
+			TraversalCounters.expandRelationship();
 			count += 1;
 			if (count >= child_threshold){
 				tthresh = true;
 				break;
 			}
 		}
-		if(tthresh == false || arg0.endNode().getId() == startNode.getId()){
+		if(tthresh == false || arg0.endNode().getId() == startNodeId){
 			return Evaluation.INCLUDE_AND_CONTINUE;
 		}
 		return Evaluation.INCLUDE_AND_PRUNE;
@@ -0,0 +1,120 @@
+package opentree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Pulls the graph into memory after a restart so that the first queries do not pay for faulting in
+ *	the store files and the Lucene index.
+ *
+ * The node and relationship stores are read through GlobalGraphOperations, which walks them in id order
+ *	(sequential reads of the store files), loading every property of each record on the way, and every
+ *	"name" keyed node index is read through once. The time of each phase is kept for reporting; callers
+ *	can add the phases of their own warm-up (e.g. building in-memory query structures) with `recordTiming`.
+ */
+public class GraphWarmer {
+	private final GraphDatabaseService graphDb;
+	private final LinkedHashMap<String,Long> timings = new LinkedHashMap<String,Long>();
+
+	public GraphWarmer(GraphDatabaseService graphDb){
+		this.graphDb = graphDb;
+	}
+
+	/**
+	 * Runs every phase: node store, relationship store, name indexes
+	 */
+	public void warmAll(){
+		warmNodes();
+		warmRelationships();
+		warmNameIndexes();
+	}
+
+	/**
+	 * @return the number of nodes read
+	 */
+	public long warmNodes(){
+		long start = System.currentTimeMillis();
+		long count = 0;
+		for (Node nd : GlobalGraphOperations.at(graphDb).getAllNodes()) {
+			touchProperties(nd);
+			count += 1;
+		}
+		recordTiming("nodes (" + count + ")", System.currentTimeMillis() - start);
+		return count;
+	}
+
+	/**
+	 * @return the number of relationships read
+	 */
+	public long warmRelationships(){
+		long start = System.currentTimeMillis();
+		long count = 0;
+		for (Relationship rel : GlobalGraphOperations.at(graphDb).getAllRelationships()) {
+			touchProperties(rel);
+			count += 1;
+		}
+		recordTiming("relationships (" + count + ")", System.currentTimeMillis() - start);
+		return count;
+	}
+
+	/**
+	 * Reads every entry of each node index under the "name" key
+	 * @return the number of index entries read
+	 */
+	public long warmNameIndexes(){
+		long total = 0;
+		for (String indexname : graphDb.index().nodeIndexNames()) {
+			long start = System.currentTimeMillis();
+			Index<Node> index = graphDb.index().forNodes(indexname);
+			IndexHits<Node> hits = index.query("name", "*");
+			long count = 0;
+			try {
+				for (@SuppressWarnings("unused") Node nd : hits)
+					count += 1;
+			} finally {
+				hits.close();
+			}
+			total += count;
+			recordTiming("index " + indexname + " (" + count + ")", System.currentTimeMillis() - start);
+		}
+		return total;
+	}
+
+	private static void touchProperties(PropertyContainer pc){
+		for (String key : pc.getPropertyKeys())
+			pc.getProperty(key);
+	}
+
+	public synchronized void recordTiming(String phase, long ms){
+		timings.put(phase, ms);
+	}
+
+	/**
+	 * @return the milliseconds taken by each phase so far, in the order they ran
+	 */
+	public synchronized Map<String,Long> getTimings(){
+		return new LinkedHashMap<String,Long>(timings);
+	}
+
+	/**
+	 * @return one "phase: ms" line per phase, and the total
+	 */
+	public synchronized String getReport(){
+		StringBuilder sb = new StringBuilder();
+		long total = 0;
+		for (Map.Entry<String,Long> e : timings.entrySet()) {
+			sb.append(e.getKey()).append(": ").append(e.getValue()).append(" ms\n");
+			total += e.getValue();
+		}
+		sb.append("total: ").append(total).append(" ms\n");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,159 @@
+package opentree;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Minimal streaming JSON writer. Tokens are written to the underlying Writer as
+ *	soon as they are emitted, so documents never have to be built up in memory.
+ *	Separators and string escaping are handled here so that callers cannot
+ *	produce the trailing commas that the hand written JSON used to contain.
+ */
+public class JSONWriter {
+	private final Writer out;
+	private boolean [] hasElement = new boolean[16]; // one flag per open object/array
+	private int depth = 0;
+	private boolean afterName = false;
+
+	public JSONWriter(Writer out){
+		this.out = out;
+	}
+
+	public JSONWriter beginObject() throws IOException {
+		return open('{');
+	}
+
+	public JSONWriter endObject() throws IOException {
+		return close('}');
+	}
+
+	public JSONWriter beginArray() throws IOException {
+		return open('[');
+	}
+
+	public JSONWriter endArray() throws IOException {
+		return close(']');
+	}
+
+	/**
+	 * Writes the key of the next member of the current object.
+	 */
+	public JSONWriter name(String key) throws IOException {
+		separate();
+		writeString(out, key);
+		out.write(':');
+		afterName = true;
+		return this;
+	}
+
+	public JSONWriter value(String s) throws IOException {
+		if (s == null)
+			return nullValue();
+		separate();
+		writeString(out, s);
+		return this;
+	}
+
+	public JSONWriter value(long n) throws IOException {
+		separate();
+		out.write(Long.toString(n));
+		return this;
+	}
+
+	public JSONWriter value(double d) throws IOException {
+		if (Double.isNaN(d) || Double.isInfinite(d))
+			return nullValue();
+		separate();
+		out.write(Double.toString(d));
+		return this;
+	}
+
+	public JSONWriter value(boolean b) throws IOException {
+		separate();
+		out.write(b ? "true" : "false");
+		return this;
+	}
+
+	public JSONWriter nullValue() throws IOException {
+		separate();
+		out.write("null");
+		return this;
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private JSONWriter open(char c) throws IOException {
+		separate();
+		out.write(c);
+		depth += 1;
+		if (depth == hasElement.length) {
+			boolean [] tmp = new boolean[hasElement.length * 2];
+			System.arraycopy(hasElement, 0, tmp, 0, hasElement.length);
+			hasElement = tmp;
+		}
+		hasElement[depth] = false;
+		return this;
+	}
+
+	private JSONWriter close(char c) throws IOException {
+		if (depth == 0)
+			throw new IllegalStateException("no open JSON object or array to close");
+		depth -= 1;
+		out.write(c);
+		return this;
+	}
+
+	/**
+	 * Writes the comma needed before the next value (unless the value follows a member name)
+	 */
+	private void separate() throws IOException {
+		if (afterName) {
+			afterName = false;
+			return;
+		}
+		if (hasElement[depth])
+			out.write(',');
+		hasElement[depth] = true;
+	}
+
+	/**
+	 * Writes `s` as a quoted JSON string.
+	 */
+	public static void writeString(Writer w, String s) throws IOException {
+		w.write('"');
+		int start = 0;
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\')
+				continue;
+			if (i > start)
+				w.write(s, start, i - start);
+			start = i + 1;
+			switch (c) {
+			case '"':	w.write("\\\""); break;
+			case '\\':	w.write("\\\\"); break;
+			case '\n':	w.write("\\n"); break;
+			case '\r':	w.write("\\r"); break;
+			case '\t':	w.write("\\t"); break;
+			case '\b':	w.write("\\b"); break;
+			case '\f':	w.write("\\f"); break;
+			default:
+				String hex = Integer.toHexString(c);
+				w.write("\\u");
+				for (int j = hex.length(); j < 4; j++)
+					w.write('0');
+				w.write(hex);
+			}
+		}
+		if (len > start)
+			w.write(s, start, len - start);
+		w.write('"');
+	}
+}
@@ -0,0 +1,171 @@
+package opentree;
+
+import java.util.Arrays;
+
+/**
+ * Lowest common ancestor (MRCA) queries over a TaxonomyTreeIndex.
+ *
+ * The tree is flattened into an Euler tour (every node is listed on the way down and again after each
+ *	of its children), so the LCA of two nodes is the shallowest node in the tour between their first
+ *	occurrences. That range minimum is answered from a sparse table over blocks of BLOCK tour
+ *	positions plus a scan of the two partial blocks at the ends, which keeps the table small
+ *	(O(n/BLOCK log n) ints) for trees with millions of taxa. The MRCA of k nodes is the LCA of the two
+ *	of them that occur first and last in the tour, so it costs O(k) plus one range query.
+ *
+ * All roots of the tree hang below one virtual root; a query whose answer is the virtual root has
+ *	no common ancestor.
+ */
+public class LCAIndex {
+	private static final int BLOCK = 32;
+
+	private final TaxonomyTreeIndex tree;
+	private final int virtualroot;
+	private final int [] tour;
+	private final int [] tourdepth;
+	private final int [] first;
+	private final int [] depth;
+	private final int [][] table;
+
+	public LCAIndex(TaxonomyTreeIndex tree){
+		this.tree = tree;
+		int n = tree.size();
+		virtualroot = n;
+		tour = new int[2 * n + 1];
+		tourdepth = new int[2 * n + 1];
+		first = new int[n + 1];
+		depth = new int[n + 1];
+		Arrays.fill(first, -1);
+		int len = buildTour(n);
+
+		int nblocks = (len + BLOCK - 1) / BLOCK;
+		int levels = 1;
+		while ((1 << levels) <= nblocks)
+			levels += 1;
+		table = new int[levels][];
+		table[0] = new int[nblocks];
+		for (int b = 0; b < nblocks; b++)
+			table[0][b] = scan(b * BLOCK, Math.min(len, (b + 1) * BLOCK) - 1);
+		for (int j = 1; j < levels; j++) {
+			int span = 1 << (j - 1);
+			table[j] = new int[nblocks - (1 << j) + 1];
+			for (int b = 0; b < table[j].length; b++)
+				table[j][b] = shallower(table[j - 1][b], table[j - 1][b + span]);
+		}
+	}
+
+	/**
+	 * Walks the tree without recursion, filling the tour, the depths and the first occurrences
+	 * @return the length of the tour
+	 */
+	private int buildTour(int n){
+		int [] roots = tree.getRoots();
+		int [] nextchild = new int[n + 1];
+		for (int i = 0; i < n; i++)
+			nextchild[i] = tree.getFirstChild(i);
+		int nextroot = 0;
+		int [] stack = new int[n + 1];
+		int top = 0;
+		stack[top++] = virtualroot;
+		int pos = 0;
+		first[virtualroot] = pos;
+		tour[pos] = virtualroot;
+		tourdepth[pos++] = 0;
+		while (top > 0) {
+			int u = stack[top - 1];
+			int c;
+			if (u == virtualroot) {
+				c = nextroot < roots.length ? roots[nextroot++] : -1;
+			} else {
+				c = nextchild[u];
+				if (c >= 0)
+					nextchild[u] = tree.getNextSibling(c);
+			}
+			if (c >= 0) {
+				depth[c] = depth[u] + 1;
+				first[c] = pos;
+				tour[pos] = c;
+				tourdepth[pos++] = depth[c];
+				stack[top++] = c;
+			} else {
+				top -= 1;
+				if (top > 0) {
+					tour[pos] = stack[top - 1];
+					tourdepth[pos++] = depth[stack[top - 1]];
+				}
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * @return the tree this index answers queries for
+	 */
+	public TaxonomyTreeIndex getTree(){
+		return tree;
+	}
+
+	/**
+	 * @return the number of steps from a root down to `index` (roots are at depth 1), or 0 if
+	 *		`index` is not reachable from a root (i.e. it is on a cycle of parents)
+	 */
+	public int getDepth(int index){
+		return first[index] < 0 ? 0 : depth[index];
+	}
+
+	/**
+	 * @return the index of the lowest common ancestor of the tree indexes `a` and `b`, or -1 if they have none
+	 */
+	public int lca(int a, int b){
+		return mrca(new int[]{a, b});
+	}
+
+	/**
+	 * @return the index of the most recent common ancestor of all of `indexes`, or -1 if they have none
+	 *		(or one of them is negative, i.e. not in the tree)
+	 */
+	public int mrca(int [] indexes){
+		if (indexes.length == 0)
+			return -1;
+		int lo = Integer.MAX_VALUE;
+		int hi = -1;
+		for (int i = 0; i < indexes.length; i++) {
+			int ix = indexes[i];
+			if (ix < 0 || ix >= virtualroot || first[ix] < 0)
+				return -1;
+			lo = Math.min(lo, first[ix]);
+			hi = Math.max(hi, first[ix]);
+		}
+		int ret = tour[minPosition(lo, hi)];
+		return ret == virtualroot ? -1 : ret;
+	}
+
+	/**
+	 * @return the tour position of the shallowest node in tour positions [lo, hi]
+	 */
+	private int minPosition(int lo, int hi){
+		int blo = lo / BLOCK;
+		int bhi = hi / BLOCK;
+		if (blo == bhi)
+			return scan(lo, hi);
+		int best = shallower(scan(lo, (blo + 1) * BLOCK - 1), scan(bhi * BLOCK, hi));
+		if (bhi - blo > 1) {
+			int from = blo + 1;
+			int to = bhi - 1;
+			int j = 31 - Integer.numberOfLeadingZeros(to - from + 1);
+			best = shallower(best, shallower(table[j][from], table[j][to - (1 << j) + 1]));
+		}
+		return best;
+	}
+
+	private int scan(int lo, int hi){
+		int best = lo;
+		for (int p = lo + 1; p <= hi; p++)
+			if (tourdepth[p] < tourdepth[best])
+				best = p;
+		return best;
+	}
+
+	private int shallower(int p, int q){
+		return tourdepth[q] < tourdepth[p] ? q : p;
+	}
+}
@@ -0,0 +1,47 @@
+package opentree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small synchronized least-recently-used cache that holds at most `maxEntries` mappings.
+ */
+public class LRUCache<K,V> {
+	private final LinkedHashMap<K,V> map;
+
+	public LRUCache(final int maxEntries){
+		map = new LinkedHashMap<K,V>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K,V> eldest){
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached value for `key` (marking it as recently used) or null
+	 */
+	public synchronized V get(K key){
+		return map.get(key);
+	}
+
+	public synchronized void put(K key, V value){
+		map.put(key, value);
+	}
+
+	/**
+	 * @return the value that was cached for `key` or null
+	 */
+	public synchronized V remove(K key){
+		return map.remove(key);
+	}
+
+	public synchronized void clear(){
+		map.clear();
+	}
+
+	public synchronized int size(){
+		return map.size();
+	}
+}
@@ -0,0 +1,72 @@
+package opentree;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map from long keys (e.g. node ids) to non-negative ints, without boxing.
+ */
+public class LongIntHashMap {
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private long [] keys;
+	private int [] values;
+	private int size = 0;
+
+	public LongIntHashMap(int expected){
+		int capacity = 16;
+		while (capacity < expected * 2)
+			capacity <<= 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * @return the value for `key`, or -1 if there is none
+	 */
+	public int get(long key){
+		int mask = keys.length - 1;
+		for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				return values[i];
+			if (keys[i] == EMPTY)
+				return -1;
+		}
+	}
+
+	public void put(long key, int value){
+		if (key == EMPTY)
+			throw new IllegalArgumentException("key " + key + " is reserved");
+		if ((size + 1) * 2 > keys.length)
+			grow();
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		while (keys[i] != EMPTY && keys[i] != key)
+			i = (i + 1) & mask;
+		if (keys[i] == EMPTY)
+			size += 1;
+		keys[i] = key;
+		values[i] = value;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	private void grow(){
+		long [] oldkeys = keys;
+		int [] oldvalues = values;
+		keys = new long[oldkeys.length * 2];
+		values = new int[oldvalues.length * 2];
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+		for (int i = 0; i < oldkeys.length; i++)
+			if (oldkeys[i] != EMPTY)
+				put(oldkeys[i], oldvalues[i]);
+	}
+
+	private static int slot(long key, int mask){
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+}
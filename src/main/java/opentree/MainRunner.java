@@ -1,5 +1,13 @@
 package opentree;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 //import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
@@ -59,11 +67,36 @@ public class MainRunner {
 				System.out.println("arguments should be: comptaxgraph query graphdbfolder outfile");
 				return;
 			}
-		} else if (args[0].equals("makeottol")) {
+		} else if (args[0].equals("jsgraph")) {
+			if (args.length < 3 || args.length > 6) {
+				System.out.println("arguments should be: query graphdbfolder [outfile] [maxnodes] [maxdepth]");
+				return;
+			}
+		} else if (args[0].equals("newick")) {
+			if (args.length < 4 || args.length > 6) {
+				System.out.println("arguments should be: query graphdbfolder outfile [maxdepth] [source|preferred]");
+				return;
+			}
+		} else if (args[0].equals("mrcabatch")) {
+			if (args.length != 3 && args.length != 4) {
+				System.out.println("arguments should be: queryfile graphdbfolder [fallbacksource]");
+				return;
+			}
+		} else if (args[0].equals("lineage")) {
+			if (args.length != 3 && args.length != 4) {
+				System.out.println("arguments should be: names|ids|queryfile graphdbfolder [fallbacksource]");
+				return;
+			}
+		} else if (args[0].equals("warmup")) {
 			if (args.length != 2) {
 				System.out.println("arguments should be: graphdbfolder");
 				return;
 			}
+		} else if (args[0].equals("makeottol")) {
+			if (args.length != 2 && args.length != 3) {
+				System.out.println("arguments should be: graphdbfolder [sourcepriority]");
+				return;
+			}
 		} else if (args.length != 3) {
 			System.out.println("arguments should be: query graphdbfolder");
 			return;
@@ -91,9 +124,34 @@ public class MainRunner {
 		} else if (args[0].equals("jsgraph")) {
 			String query = args[1];
 			String graphname = args[2];
+			String outname = "graph_data.js";
+			int maxnodes = -1;
+			int maxdepth = -1;
+			if (args.length > 3)
+				outname = args[3];
+			if (args.length > 4)
+				maxnodes = Integer.parseInt(args[4]);
+			if (args.length > 5)
+				maxdepth = Integer.parseInt(args[5]);
 			te =  new TaxonomyExplorer(graphname);
 			System.out.println("constructing json graph data for " + query);
-			te.constructJSONGraph(query);
+			te.constructJSONGraph(query, outname, maxnodes, maxdepth);
+		} else if (args[0].equals("newick")) {
+			String query = args[1];
+			String graphname = args[2];
+			String outname = args[3];
+			int maxdepth = -1;
+			String source = null;
+			if (args.length > 4)
+				maxdepth = Integer.parseInt(args[4]);
+			if (args.length > 5)
+				source = args[5];
+			te =  new TaxonomyExplorer(graphname);
+			System.out.println("writing the newick subtree of " + query);
+			if ("preferred".equals(source))
+				te.writeNewickSubtree(query, outname, maxdepth, null, true);
+			else
+				te.writeNewickSubtree(query, outname, maxdepth, source, false);
 		} else if (args[0].equals("checktree")) {
 			String query = args[1];
 			String focalgroup = args[2];
@@ -101,11 +159,53 @@ public class MainRunner {
 			te =  new TaxonomyExplorer(graphname);
 			System.out.println("checking the names of " + query + " against the taxonomy graph");
 			te.checkNamesInTree(query,focalgroup);
+		} else if (args[0].equals("mrcabatch")) {
+			String query = args[1];
+			String graphname = args[2];
+			String fallbacksource = null;
+			if (args.length == 4)
+				fallbacksource = args[3];
+			te =  new TaxonomyExplorer(graphname);
+			System.out.println("finding the mrca of each line of " + query);
+			te.mrcaBatch(query, fallbacksource);
+		} else if (args[0].equals("lineage")) {
+			String query = args[1];
+			String graphname = args[2];
+			String fallbacksource = null;
+			if (args.length == 4)
+				fallbacksource = args[3];
+			List<String> queries;
+			if (new File(query).isFile()) {
+				queries = new ArrayList<String>();
+				try {
+					BufferedReader br = new BufferedReader(new FileReader(query));
+					String line;
+					while ((line = br.readLine()) != null)
+						if (line.trim().length() > 0)
+							queries.add(line.trim());
+					br.close();
+				} catch (IOException ioe) {
+					System.out.println("problem reading " + query);
+					return;
+				}
+			} else {
+				queries = Arrays.asList(query.split(","));
+			}
+			te =  new TaxonomyExplorer(graphname);
+			te.printLineages(queries, fallbacksource);
+		} else if (args[0].equals("warmup")) {
+			String graphname = args[1];
+			te =  new TaxonomyExplorer(graphname);
+			System.out.println("warming up " + graphname);
+			te.warmUp();
 		} else if (args[0].equals("makeottol")) {
 			String graphname = args[1];
 			te =  new TaxonomyExplorer(graphname);
 			System.out.println("making ottol relationships");
-			te.makePreferredOTTOLRelationshipsConflicts();
+			if (args.length == 3)
+				te.makePreferredOTTOLRelationshipsConflicts(Arrays.asList(args[2].split(",")));
+			else
+				te.makePreferredOTTOLRelationshipsConflicts();
 			te.makePreferredOTTOLRelationshipsNOConflicts();
 		} else {
 			System.err.println("\nERROR: not a known command\n");
@@ -128,12 +228,16 @@ public class MainRunner {
 		System.out.println("\tinittaxsyn <sourcename> <filename> <synonymfile> <graphdbfolder> (initializes the tax graph with a list and synonym file)");
 		System.out.println("\taddtaxsyn <sourcename> <filename> <synonymfile> <graphdbfolder> (adds a tax list and synonym file)");
 		System.out.println("\tupdatetax <filename> <sourcename> <graphdbfolder> (updates a specific source taxonomy)");
-		System.out.println("\tmakeottol <graphdbfolder> (creates the preferred ottol branches)");
+		System.out.println("\tmakeottol <graphdbfolder> [sourcepriority] (creates the preferred ottol branches, resolving conflicts by the comma separated source list, default ncbi)");
 		System.out.println("\n---taxquery---");
 		System.out.println("\tcomptaxtree <name> <graphdbfolder> (construct a comprehensive tax newick)");
 		System.out.println("\tcomptaxgraph <name> <graphdbfolder> <outdotfile> (construct a comprehensive taxonomy in dot)");
 		System.out.println("\tfindcycles <name> <graphdbfolder> (find cycles in tax graph)");
-		System.out.println("\tjsgraph <name> <graphdbfolder> (constructs a json file from tax graph)");
+		System.out.println("\tnewick <name> <graphdbfolder> <outfile> [maxdepth] [source|preferred] (writes the tax subtree in newick, optionally from one source or the preferred relationships)");
+		System.out.println("\tjsgraph <name> <graphdbfolder> [outfile] [maxnodes] [maxdepth] (constructs a json file from tax graph)");
+		System.out.println("\tmrcabatch <queryfile> <graphdbfolder> [fallbacksource] (prints the mrca of each line of comma separated node ids or names, using the preferred tree)");
+		System.out.println("\tlineage <names|ids|queryfile> <graphdbfolder> [fallbacksource] (prints the preferred lineage of comma separated names or ids, or of each line of a file)");
+		System.out.println("\twarmup <graphdbfolder> (reads the graph and indexes into memory and reports the time each phase took)");
 		System.out.println("\tchecktree <filename> <focalgroup> <graphdbfolder> (checks names in tree against tax graph)");
 	}
 	/**
@@ -163,7 +267,11 @@ public class MainRunner {
 					|| args[0].equals("comptaxgraph")
 					|| args[0].equals("findcycles")
 					|| args[0].equals("jsgraph") 
+					|| args[0].equals("newick")
 					|| args[0].equals("checktree")
+					|| args[0].equals("mrcabatch")
+					|| args[0].equals("lineage")
+					|| args[0].equals("warmup")
 					|| args[0].equals("makeottol")) {
 				mr.taxonomyQueryParser(args);
 			} else {
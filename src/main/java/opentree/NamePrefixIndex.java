@@ -0,0 +1,480 @@
+package opentree;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import opentree.TaxonomyBase.RelTypes;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+
+/**
+ * In-memory, case insensitive prefix completion over taxon names and synonyms. Taxa are the nodes in the
+ *	taxon name indexes (taxNodes, written by the loader, and taxNamedNodes, read by the explorer and the
+ *	plugins); synonyms are the nodes that are SYNONYMOF one of them (the loader does not fill the synNodes
+ *	index). Other named nodes, e.g. taxonomy metadata, are left out.
+ *
+ * The names are held in one sorted character pool with parallel arrays of offsets and node ids, so a
+ *	completion is a binary search followed by a scan of at most `limit` entries. Names added, renamed
+ *	or deleted after the build are kept in a small overlay that is maintained by a transaction event
+ *	handler and merged into the sorted arrays once it, or the set of names it hides, grows past a
+ *	threshold, so the index never has to be rebuilt from the graph after a load. Named nodes that appear
+ *	after the build are listed straight away; whether they are in a taxon name index is only checked
+ *	when they are merged, so that commits do not wait on index queries.
+ *
+ * Queries read an immutable State through a volatile reference and never block; updates build a new
+ *	State and publish it.
+ */
+public class NamePrefixIndex {
+	private static final int MERGE_THRESHOLD = 50000;
+
+	/**
+	 * A name that a prefix completes to. For synonyms `nodeid` is the taxon that the synonym refers to.
+	 */
+	public static class Completion {
+		public final String name;
+		public final long nodeid;
+		public final boolean synonym;
+
+		Completion(String name, long nodeid, boolean synonym){
+			this.name = name;
+			this.nodeid = nodeid;
+			this.synonym = synonym;
+		}
+	}
+
+	/**
+	 * A name during building and in the overlay. `sourceid` is the node that carries the name.
+	 */
+	private static class Entry {
+		final String name;
+		final long nodeid;
+		final long sourceid;
+		final boolean synonym;
+		final String indexedname; // for taxa not yet known to be in a taxon name index, the name to look for there
+
+		Entry(String name, long nodeid, long sourceid, boolean synonym){
+			this(name, nodeid, sourceid, synonym, null);
+		}
+
+		Entry(String name, long nodeid, long sourceid, boolean synonym, String indexedname){
+			this.name = name;
+			this.nodeid = nodeid;
+			this.sourceid = sourceid;
+			this.synonym = synonym;
+			this.indexedname = indexedname;
+		}
+	}
+
+	/**
+	 * Orders entries by case folded name, then by the node carrying the name
+	 */
+	private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>(){
+		public int compare(Entry a, Entry b){
+			int c = compareFolded(a.name, b.name);
+			if (c != 0)
+				return c;
+			if (a.sourceid != b.sourceid)
+				return a.sourceid < b.sourceid ? -1 : 1;
+			return a.synonym == b.synonym ? 0 : (a.synonym ? 1 : -1);
+		}
+	};
+
+	/**
+	 * The sorted arrays of names
+	 */
+	private static class Sorted {
+		final char [] pool;
+		final int [] offsets; // name i is pool[offsets[i]] up to pool[offsets[i + 1]]
+		final long [] nodeids;
+		final long [] sourceids;
+		final BitSet synonyms;
+		final BitSet taxonsources; // the nodes carrying the taxon names, by id
+		final BitSet synonymsources;
+
+		Sorted(List<Entry> entries){
+			int nchars = 0;
+			for (Entry e : entries)
+				nchars += e.name.length();
+			pool = new char[nchars];
+			offsets = new int[entries.size() + 1];
+			nodeids = new long[entries.size()];
+			sourceids = new long[entries.size()];
+			synonyms = new BitSet(entries.size());
+			taxonsources = new BitSet();
+			synonymsources = new BitSet();
+			int pos = 0;
+			for (int i = 0; i < entries.size(); i++) {
+				Entry e = entries.get(i);
+				offsets[i] = pos;
+				e.name.getChars(0, e.name.length(), pool, pos);
+				pos += e.name.length();
+				nodeids[i] = e.nodeid;
+				sourceids[i] = e.sourceid;
+				if (e.synonym) {
+					synonyms.set(i);
+					synonymsources.set(TaxonomyBase.bitIndex(e.sourceid));
+				} else {
+					taxonsources.set(TaxonomyBase.bitIndex(e.sourceid));
+				}
+			}
+			offsets[entries.size()] = pos;
+		}
+
+		int size(){
+			return nodeids.length;
+		}
+
+		boolean hasSource(long id){
+			int i = TaxonomyBase.bitIndex(id);
+			return taxonsources.get(i) || synonymsources.get(i);
+		}
+
+		String name(int i){
+			return new String(pool, offsets[i], offsets[i + 1] - offsets[i]);
+		}
+
+		Entry entry(int i){
+			return new Entry(name(i), nodeids[i], sourceids[i], synonyms.get(i));
+		}
+
+		/**
+		 * @return <0, 0 or >0 as the folded name i sorts before, starts with, or sorts after `foldedprefix`
+		 */
+		int comparePrefix(int i, String foldedprefix){
+			int start = offsets[i];
+			int len = offsets[i + 1] - start;
+			int n = Math.min(len, foldedprefix.length());
+			for (int j = 0; j < n; j++) {
+				char c = Character.toLowerCase(pool[start + j]);
+				char p = foldedprefix.charAt(j);
+				if (c != p)
+					return c - p;
+			}
+			return len < foldedprefix.length() ? -1 : 0;
+		}
+
+		/**
+		 * @return the index of the first name that does not sort before `foldedprefix`
+		 */
+		int lowerBound(String foldedprefix){
+			int lo = 0;
+			int hi = size();
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (comparePrefix(mid, foldedprefix) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * Everything a query needs. Never modified once published.
+	 */
+	private static class State {
+		final Sorted base;
+		final TreeSet<Entry> added;
+		final HashMap<Long,List<Entry>> addedbysource;
+		final HashSet<Long> hidden; // nodes whose names in `base` are no longer current
+
+		State(Sorted base, TreeSet<Entry> added, HashMap<Long,List<Entry>> addedbysource, HashSet<Long> hidden){
+			this.base = base;
+			this.added = added;
+			this.addedbysource = addedbysource;
+			this.hidden = hidden;
+		}
+	}
+
+	private volatile State state;
+	private final Object updatelock = new Object();
+	private static final String [] TAXON_INDEXES = {"taxNodes", "taxNamedNodes"};
+
+	private final List<Index<Node>> taxnodes;
+
+	private NamePrefixIndex(List<Entry> entries, List<Index<Node>> taxnodes){
+		this.taxnodes = taxnodes;
+		Collections.sort(entries, ENTRY_ORDER);
+		state = new State(new Sorted(entries), new TreeSet<Entry>(ENTRY_ORDER), new HashMap<Long,List<Entry>>(), new HashSet<Long>());
+	}
+
+	/**
+	 * Reads the names of the taxa in the taxon name indexes of `graphDb`, and of their synonyms, and registers
+	 *	a transaction event handler that keeps the index current with later writes.
+	 */
+	public static NamePrefixIndex build(GraphDatabaseService graphDb){
+		ArrayList<Index<Node>> taxnodes = new ArrayList<Index<Node>>();
+		for (String indexname : TAXON_INDEXES) {
+			if (graphDb.index().existsForNodes(indexname))
+				taxnodes.add(graphDb.index().forNodes(indexname));
+		}
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		HashSet<Long> seen = new HashSet<Long>();
+		for (Index<Node> index : taxnodes) {
+			IndexHits<Node> hits = index.query("name", "*");
+			try {
+				for (Node nd : hits) {
+					// a taxon that was indexed under more than one name is listed once, by its current name
+					if (seen.add(nd.getId()) == false || nd.hasProperty("name") == false)
+						continue;
+					entries.add(new Entry((String) nd.getProperty("name"), nd.getId(), nd.getId(), false));
+					for (Relationship rel : nd.getRelationships(RelTypes.SYNONYMOF, Direction.INCOMING)) {
+						Node syn = rel.getStartNode();
+						if (syn.hasProperty("name"))
+							entries.add(new Entry((String) syn.getProperty("name"), nd.getId(), syn.getId(), true));
+					}
+				}
+			} finally {
+				hits.close();
+			}
+		}
+		NamePrefixIndex npi = new NamePrefixIndex(entries, taxnodes);
+		graphDb.registerTransactionEventHandler(npi.new Updater());
+		return npi;
+	}
+
+	/**
+	 * @param s the state before the transaction being applied
+	 * @return the entry for the name carried by `nd`, or null if `nd` has no name. A node that is not a
+	 *		synonym is listed as a taxon: one that already was stays verified when it is renamed, and the
+	 *		others are checked against the taxon name indexes at the next merge.
+	 */
+	private static Entry entryFor(Node nd, State s){
+		if (nd.hasProperty("name") == false)
+			return null;
+		String name = (String) nd.getProperty("name");
+		for (Relationship rel : nd.getRelationships(RelTypes.SYNONYMOF, Direction.OUTGOING))
+			return new Entry(name, rel.getEndNode().getId(), nd.getId(), true);
+		List<Entry> listed = s.addedbysource.get(nd.getId());
+		if (listed != null && listed.get(0).synonym == false)
+			return new Entry(name, nd.getId(), nd.getId(), false, listed.get(0).indexedname);
+		if (listed == null && s.base.taxonsources.get(TaxonomyBase.bitIndex(nd.getId())))
+			return new Entry(name, nd.getId(), nd.getId(), false);
+		return new Entry(name, nd.getId(), nd.getId(), false, name);
+	}
+
+	private boolean isIndexed(long id, String name){
+		for (Index<Node> index : taxnodes) {
+			IndexHits<Node> hits = index.get("name", name);
+			try {
+				for (Node hit : hits) {
+					if (hit.getId() == id)
+						return true;
+				}
+			} finally {
+				hits.close();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of names in the index
+	 */
+	public int size(){
+		State s = state;
+		return s.base.size() + s.added.size();
+	}
+
+	/**
+	 * @return up to `limit` names that start with `prefix` (ignoring case), in case insensitive alphabetical order
+	 */
+	public List<Completion> complete(String prefix, int limit){
+		State s = state;
+		String folded = fold(prefix);
+		ArrayList<Entry> frombase = new ArrayList<Entry>(limit);
+		for (int i = s.base.lowerBound(folded); i < s.base.size() && frombase.size() < limit; i++) {
+			if (s.base.comparePrefix(i, folded) != 0)
+				break;
+			if (s.hidden.isEmpty() == false && s.hidden.contains(s.base.sourceids[i]))
+				continue;
+			frombase.add(s.base.entry(i));
+		}
+		ArrayList<Entry> fromadded = new ArrayList<Entry>();
+		if (s.added.isEmpty() == false) {
+			Iterator<Entry> it = s.added.tailSet(new Entry(prefix, Long.MIN_VALUE, Long.MIN_VALUE, false)).iterator();
+			while (it.hasNext() && fromadded.size() < limit) {
+				Entry e = it.next();
+				if (fold(e.name).startsWith(folded) == false)
+					break;
+				fromadded.add(e);
+			}
+		}
+		ArrayList<Completion> ret = new ArrayList<Completion>(limit);
+		int i = 0;
+		int j = 0;
+		while (ret.size() < limit && (i < frombase.size() || j < fromadded.size())) {
+			Entry e;
+			if (j == fromadded.size() || (i < frombase.size() && ENTRY_ORDER.compare(frombase.get(i), fromadded.get(j)) <= 0))
+				e = frombase.get(i++);
+			else
+				e = fromadded.get(j++);
+			ret.add(new Completion(e.name, e.nodeid, e.synonym));
+		}
+		return ret;
+	}
+
+	/**
+	 * Applies the names written by a committed transaction. Only the parts of the state that the
+	 *	transaction touches are copied.
+	 */
+	private void update(TransactionData data){
+		synchronized (updatelock) {
+			State s = state;
+			HashSet<Long> removed = new HashSet<Long>();
+			HashMap<Long,Entry> current = new HashMap<Long,Entry>();
+			for (Node nd : data.deletedNodes())
+				removed.add(nd.getId());
+			for (Node nd : data.createdNodes()) {
+				Entry e = entryFor(nd, s);
+				if (e != null)
+					current.put(nd.getId(), e);
+			}
+			for (PropertyEntry<Node> pe : data.assignedNodeProperties()) {
+				if ("name".equals(pe.key()) && data.isDeleted(pe.entity()) == false) {
+					Entry e = entryFor(pe.entity(), s);
+					if (e != null)
+						current.put(pe.entity().getId(), e);
+					else
+						removed.add(pe.entity().getId());
+				}
+			}
+			for (PropertyEntry<Node> pe : data.removedNodeProperties()) {
+				if ("name".equals(pe.key()) && data.isDeleted(pe.entity()) == false) {
+					current.remove(pe.entity().getId());
+					removed.add(pe.entity().getId());
+				}
+			}
+			for (Relationship rel : data.createdRelationships()) {
+				if (rel.isType(RelTypes.SYNONYMOF) && data.isDeleted(rel) == false) {
+					Entry e = entryFor(rel.getStartNode(), s);
+					if (e != null)
+						current.put(e.sourceid, e);
+				}
+			}
+			if (removed.isEmpty() && current.isEmpty())
+				return;
+
+			TreeSet<Entry> added = s.added;
+			HashMap<Long,List<Entry>> addedbysource = s.addedbysource;
+			HashSet<Long> hidden = s.hidden;
+			removed.addAll(current.keySet());
+			for (Long id : removed) {
+				// only names in `base` need hiding; the overlay drops its own
+				if (s.base.hasSource(id) && hidden.contains(id) == false) {
+					if (hidden == s.hidden)
+						hidden = new HashSet<Long>(s.hidden);
+					hidden.add(id);
+				}
+				if (addedbysource.containsKey(id)) {
+					if (added == s.added) {
+						added = new TreeSet<Entry>(s.added);
+						addedbysource = new HashMap<Long,List<Entry>>(s.addedbysource);
+					}
+					added.removeAll(addedbysource.remove(id));
+				}
+			}
+			if (current.isEmpty() == false && added == s.added) {
+				added = new TreeSet<Entry>(s.added);
+				addedbysource = new HashMap<Long,List<Entry>>(s.addedbysource);
+			}
+			for (Entry e : current.values()) {
+				added.add(e);
+				addedbysource.put(e.sourceid, Collections.singletonList(e));
+			}
+			if (added.size() > MERGE_THRESHOLD || hidden.size() > MERGE_THRESHOLD)
+				state = merge(s.base, added, hidden);
+			else if (added != s.added || hidden != s.hidden)
+				state = new State(s.base, added, addedbysource, hidden);
+		}
+	}
+
+	/**
+	 * @return a state whose sorted arrays hold the current names of `base` and `added`, with an empty
+	 *		overlay. Names in `added` that turn out not to be in a taxon name index are left out.
+	 */
+	private State merge(Sorted base, TreeSet<Entry> added, HashSet<Long> hidden){
+		ArrayList<Entry> entries = new ArrayList<Entry>(base.size() + added.size());
+		Iterator<Entry> it = added.iterator();
+		Entry next = nextIndexed(it);
+		for (int i = 0; i < base.size(); i++) {
+			if (hidden.contains(base.sourceids[i]))
+				continue;
+			Entry e = base.entry(i);
+			while (next != null && ENTRY_ORDER.compare(next, e) <= 0) {
+				entries.add(next);
+				next = nextIndexed(it);
+			}
+			entries.add(e);
+		}
+		while (next != null) {
+			entries.add(next);
+			next = nextIndexed(it);
+		}
+		return new State(new Sorted(entries), new TreeSet<Entry>(ENTRY_ORDER), new HashMap<Long,List<Entry>>(), new HashSet<Long>());
+	}
+
+	/**
+	 * @return the next entry of `it` that is a synonym or a taxon in a taxon name index, or null
+	 */
+	private Entry nextIndexed(Iterator<Entry> it){
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (e.indexedname == null)
+				return e;
+			if (isIndexed(e.sourceid, e.indexedname))
+				return new Entry(e.name, e.nodeid, e.sourceid, false);
+		}
+		return null;
+	}
+
+	private static String fold(String s){
+		char [] cs = s.toCharArray();
+		for (int i = 0; i < cs.length; i++)
+			cs[i] = Character.toLowerCase(cs[i]);
+		return new String(cs);
+	}
+
+	private static int compareFolded(String a, String b){
+		int n = Math.min(a.length(), b.length());
+		for (int i = 0; i < n; i++) {
+			char ca = Character.toLowerCase(a.charAt(i));
+			char cb = Character.toLowerCase(b.charAt(i));
+			if (ca != cb)
+				return ca - cb;
+		}
+		return a.length() - b.length();
+	}
+
+	/**
+	 * Feeds committed writes into the index
+	 */
+	private class Updater implements TransactionEventHandler<Object> {
+		public Object beforeCommit(TransactionData data){
+			return null;
+		}
+
+		public void afterCommit(TransactionData data, Object state){
+			update(data);
+		}
+
+		public void afterRollback(TransactionData data, Object state){
+		}
+	}
+}
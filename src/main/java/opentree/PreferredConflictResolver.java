@@ -0,0 +1,222 @@
+package opentree;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import opentree.TaxonomyBase.RelTypes;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.DeadlockDetectedException;
+
+/**
+ * Resolves taxonomic conflicts, i.e. nodes whose TAXCHILDOF parents have different names, by giving the
+ *	node a preferred relationship (see PreferredTreeBuilder.makePreferredRelationship) to the parent
+ *	asserted by the highest priority source.
+ *
+ * The TAXCHILDOF descendants of a root (life) are collected into a BitSet over node ids, and the id space
+ *	is cut into fixed size ranges that are processed in parallel, each range in its own transaction. Nodes
+ *	that already have a preferred parent are skipped, so rerunning after a partial failure does not create
+ *	duplicate PREFTAXCHILDOF or "ottol" relationships. The start of every committed range is appended to a
+ *	checkpoint file, with the range size, the root and a hash of the source priority list, so that a rerun
+ *	with the same settings does not rescan those ranges; the file is removed once every range has been
+ *	committed. A range that keeps deadlocking with the others is retried on its own after the parallel pass.
+ */
+public class PreferredConflictResolver {
+	private static final int MAX_ATTEMPTS = 5;
+
+	private final GraphDatabaseService graphDb;
+	private final List<String> sourcepriority;
+	private final int nthreads;
+	private final int chunksize;
+	private final File checkpointfile;
+	private final AtomicInteger created = new AtomicInteger(0);
+	private final AtomicInteger chunksdone = new AtomicInteger(0);
+
+	/**
+	 * @param sourcepriority source names, most preferred first. Conflicts in which none of these sources
+	 *		takes part are left unresolved.
+	 * @param nthreads the number of ranges processed at the same time
+	 * @param chunksize the number of node ids in one range (and one transaction)
+	 * @param checkpointfile where committed ranges are recorded, or null to always scan every range
+	 */
+	public PreferredConflictResolver(GraphDatabaseService graphDb, List<String> sourcepriority, int nthreads, int chunksize, File checkpointfile){
+		this.graphDb = graphDb;
+		this.sourcepriority = sourcepriority;
+		this.nthreads = nthreads;
+		this.chunksize = chunksize;
+		this.checkpointfile = checkpointfile;
+	}
+
+	/**
+	 * Resolves the conflicts of the TAXCHILDOF descendants of `root`
+	 * @return the number of nodes that were given a preferred parent
+	 */
+	public int resolve(Node root){
+		BitSet subtree = PreferredTreeBuilder.collectSubtree(root);
+		String runkey = chunksize + "\t" + root.getId() + "\t" + Integer.toHexString(sourcepriority.hashCode());
+		HashSet<Long> done = readCheckpoints(runkey);
+		final List<Long> failed = Collections.synchronizedList(new ArrayList<Long>());
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		try {
+			ArrayList<Future<Object>> chunks = new ArrayList<Future<Object>>();
+			for (long start = 0; start < subtree.length(); start += chunksize) {
+				final int chunkstart = (int) start;
+				final int chunkend = (int) Math.min(start + chunksize, subtree.length());
+				int first = subtree.nextSetBit(chunkstart);
+				if (done.contains(start) || first < 0 || first >= chunkend)
+					continue;
+				final BitSet ids = subtree;
+				final String key = runkey;
+				chunks.add(pool.submit(new Callable<Object>(){
+					public Object call() throws IOException {
+						if (resolveChunk(ids, chunkstart, chunkend, key) == false)
+							failed.add((long) chunkstart);
+						return null;
+					}
+				}));
+			}
+			System.out.println("resolving conflicts in " + chunks.size() + " ranges of " + chunksize + " node ids (" + done.size() + " already done)");
+			for (Future<Object> chunk : chunks)
+				chunk.get();
+			// without the other workers these cannot deadlock with each other any more
+			for (Long start : failed) {
+				System.out.println("retrying range " + start + " on its own");
+				int chunkstart = start.intValue();
+				if (resolveChunk(subtree, chunkstart, (int) Math.min(start + chunksize, subtree.length()), runkey) == false)
+					throw new DeadlockDetectedException("range " + start + " kept deadlocking; rerun to resume from the checkpoints");
+			}
+			// every range is committed, so the next run (e.g. after another taxonomy is added) starts from scratch
+			if (checkpointfile != null)
+				checkpointfile.delete();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while resolving conflicts", ie);
+		} catch (IOException ioe) {
+			throw new RuntimeException("could not write a checkpoint to " + checkpointfile, ioe);
+		} catch (ExecutionException ee) {
+			throw new RuntimeException("failed to resolve conflicts", ee.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		return created.get();
+	}
+
+	/**
+	 * Resolves the conflicts of the nodes in `ids` in [start, end) in one transaction, backing off and
+	 *	retrying when the transaction deadlocks
+	 * @return false if the range still deadlocked after MAX_ATTEMPTS attempts (nothing was committed)
+	 */
+	private boolean resolveChunk(BitSet ids, int start, int end, String runkey) throws IOException {
+		int count = 0;
+		for (int attempt = 1; ; attempt++) {
+			count = 0;
+			Transaction tx = graphDb.beginTx();
+			try {
+				for (int id = ids.nextSetBit(start); id >= 0 && id < end; id = ids.nextSetBit(id + 1)) {
+					Node nd = graphDb.getNodeById(id);
+					Relationship keep = choosePreferred(nd);
+					if (keep != null) {
+						PreferredTreeBuilder.makePreferredRelationship(nd, keep.getEndNode());
+						count += 1;
+					}
+				}
+				tx.success();
+				break;
+			} catch (DeadlockDetectedException dde) {
+				tx.failure();
+				if (attempt == MAX_ATTEMPTS)
+					return false;
+			} finally {
+				tx.finish();
+			}
+			PreferredTreeBuilder.backoff(attempt);
+		}
+		created.addAndGet(count);
+		writeCheckpoint(runkey, start);
+		int ndone = chunksdone.incrementAndGet();
+		if (ndone % 100 == 0)
+			System.out.println(ndone + " ranges done");
+		return true;
+	}
+
+	/**
+	 * @return the TAXCHILDOF relationship of `nd` from the highest priority source, or null if `nd`
+	 *		already has a preferred parent, has no conflicting parents, or none of its parents come from
+	 *		a source in the priority list
+	 */
+	private Relationship choosePreferred(Node nd){
+		if (nd.hasRelationship(RelTypes.PREFTAXCHILDOF, Direction.OUTGOING))
+			return null;
+		String parentname = null;
+		boolean conflict = false;
+		Relationship best = null;
+		int bestrank = sourcepriority.size();
+		for (Relationship rel : nd.getRelationships(RelTypes.TAXCHILDOF, Direction.OUTGOING)) {
+			Node parent = rel.getEndNode();
+			if (parent.getId() == nd.getId())
+				continue;
+			String name = (String) parent.getProperty("name", "");
+			if (parentname == null)
+				parentname = name;
+			else if (parentname.equals(name) == false)
+				conflict = true;
+			int rank = sourcepriority.indexOf(rel.getProperty("source", ""));
+			if (rank >= 0 && rank < bestrank) {
+				best = rel;
+				bestrank = rank;
+			}
+		}
+		if (conflict == false)
+			return null;
+		return best;
+	}
+
+	/**
+	 * @return the starts of the ranges that an earlier run committed with the same range size, root and
+	 *		source priority (i.e. the same `runkey`)
+	 */
+	private HashSet<Long> readCheckpoints(String runkey){
+		HashSet<Long> done = new HashSet<Long>();
+		if (checkpointfile == null || checkpointfile.exists() == false)
+			return done;
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(checkpointfile));
+			String str;
+			while ((str = br.readLine()) != null) {
+				if (str.startsWith(runkey + "\t"))
+					done.add(Long.valueOf(str.substring(runkey.length() + 1).trim()));
+			}
+			br.close();
+		} catch (IOException ioe) {
+			System.out.println("could not read checkpoints from " + checkpointfile + ", scanning every range");
+		}
+		return done;
+	}
+
+	private synchronized void writeCheckpoint(String runkey, long start) throws IOException {
+		if (checkpointfile == null)
+			return;
+		PrintWriter pw = new PrintWriter(new FileWriter(checkpointfile, true));
+		pw.println(runkey + "\t" + start);
+		pw.close();
+	}
+}
@@ -0,0 +1,274 @@
+package opentree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import opentree.TaxonomyBase.RelTypes;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Builds the preferred taxonomy (PREFTAXCHILDOF relationships, mirrored by TAXCHILDOF relationships with
+ *	the "ottol" source) from the top down.
+ *
+ * The TAXCHILDOF descendants of the root are collected first, and a node's preferred parent is its first
+ *	TAXCHILDOF parent among them: a parent outside the root's subtree (e.g. from a source that places the
+ *	taxon elsewhere) is passed over, as the old bottom-up walk did by climbing on from it. The subtree is
+ *	then walked again, visiting every node once; a second BitSet over node ids records which nodes have been
+ *	reached. The top of the tree is expanded in the calling thread and the subtrees below it are handed
+ *	to a pool of workers, each of which commits its new relationships in batches. Nodes that already
+ *	have a preferred parent (e.g. from the conflict resolution pass) are left alone, so a build can be
+ *	rerun after a partial failure. After the walk, taxonomy nodes (nodes with a TAXCHILDOF relationship)
+ *	that the root does not reach are collected and reported rather than ending the run.
+ */
+public class PreferredTreeBuilder {
+	private static final int MAX_ATTEMPTS = 5;
+	private static final int PROGRESS_INTERVAL = 100000;
+	private static final Random BACKOFF_RANDOM = new Random();
+
+	private final GraphDatabaseService graphDb;
+	private final int nthreads;
+	private final int batchsize;
+	private final BitSet visited = new BitSet();
+	// `root` and its TAXCHILDOF descendants; only read while the workers run
+	private BitSet subtree;
+	private final AtomicInteger created = new AtomicInteger(0);
+	private final List<Long> unreachable = new ArrayList<Long>();
+
+	/**
+	 * @param nthreads the number of workers that subtrees are handed to
+	 * @param batchsize the number of nodes whose preferred relationships are committed in one transaction
+	 */
+	public PreferredTreeBuilder(GraphDatabaseService graphDb, int nthreads, int batchsize){
+		this.graphDb = graphDb;
+		this.nthreads = nthreads;
+		this.batchsize = batchsize;
+	}
+
+	/**
+	 * Gives every TAXCHILDOF descendant of `root` that does not have a preferred parent yet a preferred
+	 *	relationship to its first (non self-referential) TAXCHILDOF parent within the subtree of `root`.
+	 * @return the number of nodes that were given a preferred parent
+	 */
+	public int build(Node root){
+		subtree = collectSubtree(root);
+		markVisited(root.getId());
+		// expand the top of the tree until there are enough independent subtrees to keep the workers busy
+		Batch topbatch = new Batch();
+		ArrayList<Node> frontier = new ArrayList<Node>();
+		frontier.add(root);
+		while (frontier.isEmpty() == false && frontier.size() < nthreads * 4) {
+			ArrayList<Node> next = new ArrayList<Node>();
+			for (Node nd : frontier) {
+				if (nd.equals(root) == false)
+					topbatch.prefer(nd);
+				for (Node child : unvisitedChildren(nd))
+					next.add(child);
+			}
+			frontier = next;
+		}
+		topbatch.commit();
+
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		try {
+			ArrayList<Future<Object>> subtrees = new ArrayList<Future<Object>>();
+			for (final Node subroot : frontier) {
+				subtrees.add(pool.submit(new Callable<Object>(){
+					public Object call(){
+						buildSubtree(subroot);
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> subtree : subtrees)
+				subtree.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while building the preferred tree", ie);
+		} catch (ExecutionException ee) {
+			throw new RuntimeException("failed to build the preferred tree", ee.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		findUnreachable();
+		return created.get();
+	}
+
+	/**
+	 * @return the ids of the taxonomy nodes that the last build did not reach from its root
+	 */
+	public List<Long> getUnreachableNodeIds(){
+		return unreachable;
+	}
+
+	/**
+	 * Creates the preferred relationships used by the ottol taxonomy from `child` to `parent`
+	 */
+	static void makePreferredRelationship(Node child, Node parent){
+		child.createRelationshipTo(parent, RelTypes.PREFTAXCHILDOF);
+		Relationship rel = child.createRelationshipTo(parent, RelTypes.TAXCHILDOF);
+		rel.setProperty("source", "ottol");
+	}
+
+	/**
+	 * Waits a random time that grows with `attempt` before a transaction that deadlocked is retried, so
+	 *	that the workers that deadlocked do not meet again on the same locks
+	 */
+	static void backoff(int attempt){
+		try {
+			Thread.sleep(BACKOFF_RANDOM.nextInt(50 << attempt));
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while retrying a transaction", ie);
+		}
+	}
+
+	/**
+	 * @return the ids of `root` and its TAXCHILDOF descendants
+	 */
+	static BitSet collectSubtree(Node root){
+		BitSet subtree = new BitSet();
+		ArrayDeque<Node> stack = new ArrayDeque<Node>();
+		subtree.set(TaxonomyBase.bitIndex(root.getId()));
+		stack.push(root);
+		while (stack.isEmpty() == false) {
+			Node nd = stack.pop();
+			for (Relationship rel : nd.getRelationships(RelTypes.TAXCHILDOF, Direction.INCOMING)) {
+				Node child = rel.getStartNode();
+				if (subtree.get(TaxonomyBase.bitIndex(child.getId())) == false) {
+					subtree.set(TaxonomyBase.bitIndex(child.getId()));
+					stack.push(child);
+				}
+			}
+		}
+		return subtree;
+	}
+
+	/**
+	 * Collects the taxonomy nodes that the walk did not visit
+	 */
+	private void findUnreachable(){
+		unreachable.clear();
+		for (Node nd : GlobalGraphOperations.at(graphDb).getAllNodes()) {
+			if (visited.get(TaxonomyBase.bitIndex(nd.getId())) == false && nd.hasRelationship(RelTypes.TAXCHILDOF))
+				unreachable.add(nd.getId());
+		}
+	}
+
+	/**
+	 * Depth first walk of the subtree below (and including) `subroot`
+	 */
+	private void buildSubtree(Node subroot){
+		Batch batch = new Batch();
+		ArrayDeque<Node> stack = new ArrayDeque<Node>();
+		stack.push(subroot);
+		while (stack.isEmpty() == false) {
+			Node curnode = stack.pop();
+			batch.prefer(curnode);
+			for (Node child : unvisitedChildren(curnode))
+				stack.push(child);
+		}
+		batch.commit();
+	}
+
+	/**
+	 * @return the TAXCHILDOF children of `nd` that had not been reached before (they are marked as reached)
+	 */
+	private ArrayList<Node> unvisitedChildren(Node nd){
+		ArrayList<Node> children = new ArrayList<Node>();
+		for (Relationship rel : nd.getRelationships(RelTypes.TAXCHILDOF, Direction.INCOMING)) {
+			Node child = rel.getStartNode();
+			if (markVisited(child.getId()))
+				children.add(child);
+		}
+		return children;
+	}
+
+	/**
+	 * @return true if `id` had not been visited before this call
+	 */
+	private boolean markVisited(long id){
+		synchronized (visited) {
+			int index = TaxonomyBase.bitIndex(id);
+			if (visited.get(index))
+				return false;
+			visited.set(index);
+			return true;
+		}
+	}
+
+	/**
+	 * The preferred relationships of one worker that have not been committed yet
+	 */
+	private class Batch {
+		private final long [] children = new long[batchsize];
+		private final long [] parents = new long[batchsize];
+		private int size = 0;
+
+		/**
+		 * Queues the preferred relationship for `nd` (if it needs one), committing when the batch is full
+		 */
+		void prefer(Node nd){
+			if (nd.hasRelationship(RelTypes.PREFTAXCHILDOF, Direction.OUTGOING))
+				return;
+			Node parent = null;
+			for (Relationship rel : nd.getRelationships(RelTypes.TAXCHILDOF, Direction.OUTGOING)) {
+				long parentid = rel.getEndNode().getId();
+				if (parentid != nd.getId() && subtree.get(TaxonomyBase.bitIndex(parentid))) {
+					parent = rel.getEndNode();
+					break;
+				}
+			}
+			if (parent == null)
+				return;
+			children[size] = nd.getId();
+			parents[size] = parent.getId();
+			size += 1;
+			if (size == batchsize)
+				commit();
+		}
+
+		/**
+		 * Writes the queued relationships, retrying the whole batch if the transaction deadlocks with another worker
+		 */
+		void commit(){
+			if (size == 0)
+				return;
+			for (int attempt = 1; ; attempt++) {
+				Transaction tx = graphDb.beginTx();
+				try {
+					for (int i = 0; i < size; i++)
+						makePreferredRelationship(graphDb.getNodeById(children[i]), graphDb.getNodeById(parents[i]));
+					tx.success();
+					break;
+				} catch (DeadlockDetectedException dde) {
+					tx.failure();
+					if (attempt == MAX_ATTEMPTS)
+						throw dde;
+				} finally {
+					tx.finish();
+				}
+				backoff(attempt);
+			}
+			int total = created.addAndGet(size);
+			if (total / PROGRESS_INTERVAL != (total - size) / PROGRESS_INTERVAL)
+				System.out.println("preferred relationships created: " + total);
+			size = 0;
+		}
+	}
+}
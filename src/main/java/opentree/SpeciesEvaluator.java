@@ -13,19 +13,20 @@ import org.neo4j.graphdb.traversal.Evaluator;
  * A Neo4j Traversal Evaluator which include:
  *		paths that end with a TAXCHILDOF startNode, and
  *		paths are the TAX parent of other nodes.
+ * Immutable, so one instance can be shared by concurrent traversals from the same start node.
  */
 public class SpeciesEvaluator implements Evaluator{
-	Node startNode = null;
-	public void setStartNode(Node n){
-		startNode = n;
+	private final long startNodeId;
+	public SpeciesEvaluator(Node startNode){
+		this.startNodeId = startNode.getId();
 	}
 	public Evaluation evaluate(Path arg0) {
 		//TODO: take in whether this is a taxonomy tree or not
 		boolean parent_startnode = false;
 		
 		for(Relationship rel: arg0.endNode().getRelationships(Direction.OUTGOING, RelTypes.TAXCHILDOF)){
-			//System.out.println(startNode.getProperty("name") +"  "+rel.getEndNode().getProperty("name")+ "  "+ rel.getStartNode().getProperty("name"));
-			if (rel.getEndNode().getId()==startNode.getId()){
+			TraversalCounters.expandRelationship();
+			if (rel.getEndNode().getId()==startNodeId){
 				parent_startnode = true;
 				break;
 			}
@@ -1,32 +1,34 @@
 package opentree;
 
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
-import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.kernel.GraphDatabaseAPI;
 
 /** 
  *  @todo Currently this code is identical to the code base in GraphBase
  */
 public abstract class TaxonomyBase {
-	EmbeddedGraphDatabase graphDb; //was GraphDatabaseService
-	protected static Index<Node> taxNodeIndex;
-	protected static Index<Relationship> sourceRelIndex;
-	protected static Index<Node> prefTaxNodeIndex;
-	protected static Index<Node> prefSynNodeIndex;
-	protected static Index<Node> synNodeIndex;
-	protected static Index<Node> taxSourceIndex;
+	GraphDatabaseAPI graphDb; //was GraphDatabaseService
+	// per instance, so that explorers and loaders for different databases (or threads) never share indexes
+	protected Index<Node> taxNodeIndex;
+	protected Index<Relationship> sourceRelIndex;
+	protected Index<Node> prefTaxNodeIndex;
+	protected Index<Node> prefSynNodeIndex;
+	protected Index<Node> synNodeIndex;
+	protected Index<Node> taxSourceIndex;
 	
-	protected static enum RelTypes implements RelationshipType{
+	public static enum RelTypes implements RelationshipType{
 		TAXCHILDOF, //standard rel for tax db, from node to parent
 		SYNONYMOF, //relationship for synonyms
 		METADATAFOR, //relationship connecting a metadata node to the root of a taxonomy
 		PREFTAXCHILDOF//relationship type for preferred relationships
 	}
 	
-	protected static void registerShutdownHook( final EmbeddedGraphDatabase graphDb ){ //was GraphDatabaseService
+	protected static void registerShutdownHook( final GraphDatabaseService graphDb ){
 		Runtime.getRuntime().addShutdownHook( new Thread(){
 			@Override
 			public void run(){
@@ -35,11 +37,21 @@ public abstract class TaxonomyBase {
 		});
 	}
 	
+	/**
+	 * @return node `id` as an index into a BitSet of node ids
+	 * @throws IllegalStateException if the id is beyond what a BitSet (indexed by int) can hold
+	 */
+	static int bitIndex(long id){
+		if (id < 0 || id > Integer.MAX_VALUE)
+			throw new IllegalStateException("node id " + id + " is too large for a BitSet of node ids");
+		return (int) id;
+	}
+	
 	public void shutdownDB(){
 		 registerShutdownHook( graphDb );
 	}
 	
-	public EmbeddedGraphDatabase getGraphDB(){
+	public GraphDatabaseAPI getGraphDB(){
 		return graphDb;
 	}
 	
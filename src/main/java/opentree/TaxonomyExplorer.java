@@ -1,48 +1,67 @@
 package opentree;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import jade.tree.BinaryTreeWriter;
+import jade.tree.CompactTree;
 import jade.tree.JadeNode;
 import jade.tree.JadeTree;
-import jade.tree.TreeReader;
+import jade.tree.TreeFileReader;
 import opentree.TaxonomyBase.RelTypes;
 
-import org.neo4j.graphalgo.GraphAlgoFactory;
-import org.neo4j.graphalgo.PathFinder;
 import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.Path;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.StopEvaluator;
 import org.neo4j.graphdb.ReturnableEvaluator;
 import org.neo4j.graphdb.Relationship;
-import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.Traverser;
-import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.graphdb.traversal.Evaluators;
 import org.neo4j.graphdb.traversal.TraversalDescription;
 import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.kernel.Traversal;
 
 
 @SuppressWarnings("deprecation")
 public class TaxonomyExplorer extends TaxonomyBase{
-	private SpeciesEvaluator se;
-	private ChildNumberEvaluator cne;
 	int transaction_iter = 10000;
 	
 
 	public TaxonomyExplorer(){
-		cne = new ChildNumberEvaluator();
-		cne.setChildThreshold(100);
-		se = new SpeciesEvaluator();
+	}
+	
+	/**
+	 * Explorer over a database that is already open (e.g. the one a server plugin runs in).
+	 *	The query methods keep their traversal state in locals, so one explorer can serve
+	 *	concurrent requests.
+	 */
+	public TaxonomyExplorer(GraphDatabaseService graphDb){
+		this.graphDb = (GraphDatabaseAPI) graphDb;
+		taxNodeIndex = graphDb.index().forNodes( "taxNamedNodes" );
 	}
 	
 	
@@ -119,6 +138,10 @@ public class TaxonomyExplorer extends TaxonomyBase{
 
 	/**
 	 * This essentially uses every relationship and constructs a newick tree (hardcoded to taxtree.tre file)
+	 *	and writes the same tree, with the graph node ids, in the binary tree format to taxtree.jbt
+	 * 
+	 * The traversal visits each taxon once (node global uniqueness), so a taxon appears only under the
+	 *	first parent it is reached through; its other placements (from conflicting sources) are not written.
 	 * 
 	 * It would be trivial to only include certain relationship sources
 	 * @ name the name of the internal node that will be the root of the subtree 
@@ -133,39 +156,155 @@ public class TaxonomyExplorer extends TaxonomyBase{
 		TraversalDescription CHILDOF_TRAVERSAL = Traversal.description()
 		        .relationships( RelTypes.TAXCHILDOF,Direction.INCOMING );
 		System.out.println(firstNode.getProperty("name"));
-		JadeNode root = new JadeNode();
-		root.setName(((String) firstNode.getProperty("name")).replace(" ", "_"));
-		HashMap<Node,JadeNode> nodes = new HashMap<Node,JadeNode>();
-		nodes.put(firstNode, root);
+		// a taxonomy can have millions of nodes, so build the array based tree rather than JadeNodes
+		CompactTree tree = new CompactTree();
+		LongIntHashMap nodes = new LongIntHashMap(1024);
+		nodes.put(firstNode.getId(), tree.addNode(CompactTree.NONE, ((String) firstNode.getProperty("name")).replace(" ", "_")));
+		tree.setNodeId(0, firstNode.getId());
 		int count =0;
 		for(Relationship friendrel : CHILDOF_TRAVERSAL.traverse(firstNode).relationships()){
 			count += 1;
-			if (nodes.containsKey(friendrel.getStartNode())==false){
-				JadeNode node = new JadeNode();
-				node.setName(((String) friendrel.getStartNode().getProperty("name")).replace(" ", "_").replace(",", "_").replace(")", "_").replace("(", "_").replace(":", "_"));
-				nodes.put(friendrel.getStartNode(), node);
-			}
-			if(nodes.containsKey(friendrel.getEndNode())==false){
-				JadeNode node = new JadeNode();
-				node.setName(((String)friendrel.getEndNode().getProperty("name")).replace(" ", "_").replace(",", "_").replace(")", "_").replace("(", "_").replace(":", "_"));
-				nodes.put(friendrel.getEndNode(),node);
+			// each node is reached once, through a parent that was reached before it
+			int parentnode = nodes.get(friendrel.getEndNode().getId());
+			if (parentnode >= 0 && nodes.get(friendrel.getStartNode().getId()) < 0){
+				String childname = ((String) friendrel.getStartNode().getProperty("name")).replace(" ", "_").replace(",", "_").replace(")", "_").replace("(", "_").replace(":", "_");
+				int childnode = tree.addNode(parentnode, childname);
+				tree.setNodeId(childnode, friendrel.getStartNode().getId());
+				nodes.put(friendrel.getStartNode().getId(), childnode);
 			}
-			nodes.get(friendrel.getEndNode()).addChild(nodes.get(friendrel.getStartNode()));
 			if (count % 100000 == 0)
 				System.out.println(count);
 		}
-		JadeTree tree = new JadeTree(root);
-		PrintWriter outFile;
 		try {
-			outFile = new PrintWriter(new FileWriter("taxtree.tre"));
-			outFile.write(tree.getRoot().getNewick(false));
-			outFile.write(";\n");
+			BufferedWriter outFile = new BufferedWriter(new FileWriter("taxtree.tre"));
+			tree.writeNewick(outFile, false);
+			outFile.write("\n");
 			outFile.close();
+			// the same tree with the graph node ids, for jobs that load it again (see BinaryTreeReader)
+			BinaryTreeWriter binFile = new BinaryTreeWriter(new FileOutputStream("taxtree.jbt"));
+			binFile.write(tree);
+			binFile.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Writes the newick subtree for `name` to `outfilename` (see writeNewickSubtree)
+	 */
+	public void writeNewickSubtree(String name, String outfilename, int maxdepth, String source, boolean preferredonly){
+		Node firstNode = findTaxNodeByName(name);
+		if (firstNode == null){
+			System.out.println("name not found");
+			return;
+		}
+		try {
+			BufferedWriter out = new BufferedWriter(new FileWriter(outfilename));
+			int count = writeNewickSubtree(firstNode, out, maxdepth, source, preferredonly);
+			out.close();
+			System.out.println("wrote " + count + " nodes to " + outfilename);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Writes the taxonomy below (and including) `root` as one newick tree to `out`, as the traversal
+	 *	reaches each node, so that the size of the subtree does not matter.
+	 * 
+	 * The walk is depth first with an explicit stack of child iterators. Each node is written once,
+	 *	under the first parent that reaches it, so a graph with conflicting parents still gives a tree.
+	 *	Labels that newick would misread are single quoted.
+	 * @param maxdepth do not descend more than this many steps below `root` (< 0 for no limit)
+	 * @param source only follow TAXCHILDOF relationships from this source (null for all of them)
+	 * @param preferredonly follow the PREFTAXCHILDOF relationships instead (`source` is then ignored)
+	 * @return the number of nodes written
+	 */
+	public int writeNewickSubtree(Node root, Writer out, int maxdepth, String source, boolean preferredonly) throws IOException {
+		RelationshipType reltype = preferredonly ? RelTypes.PREFTAXCHILDOF : RelTypes.TAXCHILDOF;
+		if (preferredonly)
+			source = null;
+		BitSet written = new BitSet();
+		written.set(bitIndex(root.getId()));
+		ArrayDeque<NewickFrame> stack = new ArrayDeque<NewickFrame>();
+		stack.push(new NewickFrame(root, maxdepth == 0 ? null : root.getRelationships(reltype, Direction.INCOMING).iterator(), 0));
+		int count = 0;
+		while (stack.isEmpty() == false) {
+			NewickFrame frame = stack.peek();
+			Node child = frame.children == null ? null : nextNewickChild(frame.children, source, written);
+			if (child != null) {
+				out.write(frame.open ? ',' : '(');
+				frame.open = true;
+				int depth = frame.depth + 1;
+				Iterator<Relationship> grandchildren = null;
+				if (maxdepth < 0 || depth < maxdepth)
+					grandchildren = child.getRelationships(reltype, Direction.INCOMING).iterator();
+				stack.push(new NewickFrame(child, grandchildren, depth));
+			} else {
+				if (frame.open)
+					out.write(')');
+				TraversalCounters.visitNode();
+				TraversalCounters.loadProperty();
+				writeNewickLabel(out, (String) frame.node.getProperty("name", ""));
+				stack.pop();
+				count += 1;
+			}
+		}
+		out.write(";\n");
+		out.flush();
+		return count;
+	}
+	
+	/**
+	 * A node of writeNewickSubtree whose children are still being written
+	 */
+	private static class NewickFrame {
+		final Node node;
+		final Iterator<Relationship> children;
+		final int depth;
+		boolean open = false;
+		
+		NewickFrame(Node node, Iterator<Relationship> children, int depth){
+			this.node = node;
+			this.children = children;
+			this.depth = depth;
+		}
+	}
+	
+	/**
+	 * @return the next child (through a relationship from `source`, if not null) that has not been written yet, or null
+	 */
+	private static Node nextNewickChild(Iterator<Relationship> rels, String source, BitSet written){
+		while (rels.hasNext()) {
+			Relationship rel = rels.next();
+			TraversalCounters.expandRelationship();
+			Node child = rel.getStartNode();
+			if (written.get(bitIndex(child.getId())))
+				continue;
+			if (source != null) {
+				TraversalCounters.loadProperty();
+				if (source.equals(rel.getProperty("source", null)) == false)
+					continue;
+			}
+			written.set(bitIndex(child.getId()));
+			return child;
+		}
+		return null;
+	}
+	
+	private static void writeNewickLabel(Writer out, String label) throws IOException {
+		boolean quote = false;
+		for (int i = 0; i < label.length() && quote == false; i++)
+			quote = "()[]{}':;, \t\n".indexOf(label.charAt(i)) >= 0;
+		if (quote == false) {
+			out.write(label);
+			return;
+		}
+		out.write('\'');
+		out.write(label.replace("'", "''"));
+		out.write('\'');
+	}
+	
 	/*
 	 * Given a Taxonomic name (as name), this will attempt to find cycles which should be conflicting taxonomies
 	 */
@@ -205,55 +344,93 @@ public class TaxonomyExplorer extends TaxonomyBase{
 	 * given a taxonomic name, construct a json object of the graph surrounding that name
 	 */
 	public void constructJSONGraph(String name){
+		constructJSONGraph(name, "graph_data.js", -1, -1);
+	}
+	
+	/**
+	 * Writes the nodes/links graph surrounding `name` as JSON to `outfilename`.
+	 * 
+	 * Nodes are numbered in the order that a single breadth first traversal reaches them
+	 *	and are written out immediately, so only the (child number, parent id) pairs of the
+	 *	links are held until the traversal finishes. Links to parents that did not make it
+	 *	into the (possibly bounded) node list are dropped.
+	 * 
+	 * @param name the name of the internal node that will be the center of the graph
+	 * @param outfilename the filepath to create
+	 * @param maxnodes stop after this many nodes have been written (<= 0 for no limit)
+	 * @param maxdepth do not descend more than this many TAXCHILDOF steps below `name` (< 0 for no limit)
+	 */
+	public void constructJSONGraph(String name, String outfilename, int maxnodes, int maxdepth){
 		Node firstNode = findTaxNodeByName(name);
 		if(firstNode == null){
 			System.out.println("name not found");
 			return;
 		}
 		System.out.println(firstNode.getProperty("name"));
-		TraversalDescription CHILDOF_TRAVERSAL = Traversal.description()
+		TraversalDescription CHILDOF_TRAVERSAL = Traversal.description().breadthFirst()
 		        .relationships( RelTypes.TAXCHILDOF,Direction.INCOMING );
-		HashMap<Node,Integer> nodenumbers = new HashMap<Node,Integer>();
-		HashMap<Integer,Node> numbernodes = new HashMap<Integer,Node>();
+		if (maxdepth >= 0)
+			CHILDOF_TRAVERSAL = CHILDOF_TRAVERSAL.evaluator(Evaluators.toDepth(maxdepth));
+		HashMap<Long,Integer> nodenumbers = new HashMap<Long,Integer>();
+		int [] linksources = new int[1024];
+		long [] linktargets = new long[1024];
+		int nlinks = 0;
 		int count = 0;
-		for(Node friendnode: CHILDOF_TRAVERSAL.traverse(firstNode).nodes()){
-			if (friendnode.hasRelationship(Direction.INCOMING)){
-				nodenumbers.put(friendnode, count);
-				numbernodes.put(count,friendnode);
-				count += 1;
-			}
-		}
-		PrintWriter outFile;
 		try {
-			outFile = new PrintWriter(new FileWriter("graph_data.js"));
-			outFile.write("{\"nodes\":[");
-			for(int i=0; i<count;i++){
-				Node tnode = numbernodes.get(i);
-				outFile.write("{\"name\":\""+tnode.getProperty("name")+"");
-				outFile.write("\",\"group\":"+nodenumbers.get(tnode)+"");
-				outFile.write("},");
-			}
-			outFile.write("],\"links\":[");
-			for(Node tnode: nodenumbers.keySet()){
-				for(Relationship trel : tnode.getRelationships(Direction.OUTGOING)){
-					outFile.write("{\"source\":"+nodenumbers.get(trel.getStartNode())+"");
-					outFile.write(",\"target\":"+nodenumbers.get(trel.getEndNode())+"");
-					outFile.write(",\"value\":"+1+"");
-					outFile.write("},");
+			JSONWriter jw = new JSONWriter(new BufferedWriter(new FileWriter(outfilename)));
+			jw.beginObject().name("nodes").beginArray();
+			for(Node friendnode: CHILDOF_TRAVERSAL.traverse(firstNode).nodes()){
+				if (maxnodes > 0 && count >= maxnodes)
+					break;
+				if (friendnode.hasRelationship(Direction.INCOMING) == false)
+					continue;
+				nodenumbers.put(friendnode.getId(), count);
+				jw.beginObject();
+				jw.name("name").value((String) friendnode.getProperty("name"));
+				jw.name("group").value(count);
+				jw.endObject();
+				for(Relationship trel : friendnode.getRelationships(RelTypes.TAXCHILDOF, Direction.OUTGOING)){
+					if (nlinks == linksources.length) {
+						linksources = Arrays.copyOf(linksources, nlinks * 2);
+						linktargets = Arrays.copyOf(linktargets, nlinks * 2);
+					}
+					linksources[nlinks] = count;
+					linktargets[nlinks] = trel.getEndNode().getId();
+					nlinks += 1;
 				}
+				count += 1;
 			}
-			outFile.write("]");
-			outFile.write("}\n");
-			outFile.close();
+			jw.endArray().name("links").beginArray();
+			for(int i = 0; i < nlinks; i++){
+				Integer target = nodenumbers.get(linktargets[i]);
+				if (target == null)
+					continue;
+				jw.beginObject();
+				jw.name("source").value(linksources[i]);
+				jw.name("target").value(target);
+				jw.name("value").value(1);
+				jw.endObject();
+			}
+			jw.endArray().endObject();
+			jw.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		System.out.println("wrote " + count + " nodes to " + outfilename);
 	}
 	
+	/**
+	 * Builds the depth limited JSON tree (with alternative parents noted) that the browser plugin returns.
+	 * 
+	 * Every node that the traversal reaches is a TAXCHILDOF descendant of `firstNode`, so the parent of
+	 *	each kept node is simply the end node of its kept relationship; no path searches are needed.
+	 * @param firstNode the node at the center of the view
+	 * @param domsource the dominant source (defaults to "ottol")
+	 * @param altrels ids of alternative relationships that should be preferred over the dominant source
+	 */
 	public String constructJSONAltRels(Node firstNode, String domsource, ArrayList<Long> altrels){
-		cne.setStartNode(firstNode);
-		cne.setChildThreshold(200);
-		se.setStartNode(firstNode);
+		ChildNumberEvaluator cne = new ChildNumberEvaluator(firstNode, 200);
+		SpeciesEvaluator se = new SpeciesEvaluator(firstNode);
 		int maxdepth = 3;
 		boolean taxonomy = true;
 		RelationshipType defaultchildtype = RelTypes.TAXCHILDOF;
@@ -261,8 +438,8 @@ public class TaxonomyExplorer extends TaxonomyBase{
 		String sourcename = "ottol";
 		if(domsource != null)
 			sourcename = domsource;
+		HashSet<Long> altrelset = new HashSet<Long>(altrels);
 
-		PathFinder <Path> pf = GraphAlgoFactory.shortestPath(Traversal.pathExpanderForTypes(defaultchildtype, Direction.OUTGOING), 100);
 		JadeNode root = new JadeNode();
 		if(taxonomy == false)
 			root.setName((String)firstNode.getProperty("name"));
@@ -270,48 +447,37 @@ public class TaxonomyExplorer extends TaxonomyBase{
 			root.setName((String)firstNode.getProperty("name"));
 		TraversalDescription CHILDOF_TRAVERSAL = Traversal.description()
 		        .relationships( defaultchildtype,Direction.INCOMING );
-		ArrayList<Node> visited = new ArrayList<Node>();
-		ArrayList<Relationship> keepers = new ArrayList<Relationship>();
-		HashMap<Node,JadeNode> nodejademap = new HashMap<Node,JadeNode>();
-		HashMap<JadeNode,Node> jadeparentmap = new HashMap<JadeNode,Node>();
+		// insertion ordered so that children come out in traversal order
+		LinkedHashMap<Node,JadeNode> nodejademap = new LinkedHashMap<Node,JadeNode>();
+		LinkedHashMap<JadeNode,Node> jadeparentmap = new LinkedHashMap<JadeNode,Node>();
 		nodejademap.put(firstNode, root);
 		root.assocObject("nodeid", firstNode.getId());
-		//These are the altrels that actually made it in the tree
-		ArrayList<Long> returnrels = new ArrayList<Long>();
 		for(Node friendnode : CHILDOF_TRAVERSAL.depthFirst().evaluator(Evaluators.toDepth(maxdepth)).evaluator(cne).evaluator(se).traverse(firstNode).nodes()){
-//			System.out.println("visiting: "+friendnode.getProperty("name"));
-			if (friendnode == firstNode)
+			if (friendnode.equals(firstNode))
 				continue;
+			TraversalCounters.visitNode();
 			Relationship keep = null;
 			Relationship spreferred = null;
-			Relationship preferred = null;
-			
 			for(Relationship rel: friendnode.getRelationships(Direction.OUTGOING, defaultsourcetype)){
-				if(preferred == null)
-					preferred = rel;
-				if(altrels.contains(rel.getId())){
+				TraversalCounters.expandRelationship();
+				if(altrelset.contains(rel.getId())){
 					keep = rel;
-					returnrels.add(rel.getId());
 					break;
-				}else{
-					if (((String)rel.getProperty("source")).compareTo(sourcename) == 0){
-						spreferred = rel;
-						break;
-					}
-					/*just for last ditch efforts
-					 * if(pf.findSinglePath(rel.getEndNode(), firstNode) != null || visited.contains(rel.getEndNode())){
-						preferred = rel;
-					}*/
+				}
+				TraversalCounters.loadProperty();
+				if (sourcename.equals(rel.getProperty("source"))){
+					spreferred = rel;
+					break;
 				}
 			}
 			if(keep == null){
 				keep = spreferred;//prefer the source rel after an alt
 				if(keep == null){
 					continue;//if the node is not part of the main source just continue without making it
-//					keep = preferred;//fall back on anything
 				}
 			}
 			JadeNode newnode = new JadeNode();
+			TraversalCounters.loadProperty();
 			if(taxonomy == false){
 				if(friendnode.hasProperty("name")){
 					newnode.setName((String)friendnode.getProperty("name"));
@@ -323,60 +489,57 @@ public class TaxonomyExplorer extends TaxonomyBase{
 
 			newnode.assocObject("nodeid", friendnode.getId());
 			
+			long keepparentid = keep.getEndNode().getId();
 			ArrayList<Relationship> conflictrels = new ArrayList<Relationship>();
 			for(Relationship rel:friendnode.getRelationships(Direction.OUTGOING, defaultsourcetype)){
-				if(rel.getEndNode().getId() != keep.getEndNode().getId() && conflictrels.contains(rel)==false){
-					//check for nested conflicts
-					//							if(pf.findSinglePath(keep.getEndNode(), rel.getEndNode())==null)
+				TraversalCounters.expandRelationship();
+				if(rel.getEndNode().getId() != keepparentid){
 					conflictrels.add(rel);
 				}
 			}
 			newnode.assocObject("conflictrels",conflictrels);
 			nodejademap.put(friendnode, newnode);
-			keepers.add(keep);
-			visited.add(friendnode);
-			if(firstNode != friendnode && pf.findSinglePath(keep.getStartNode(), firstNode) != null){
-				jadeparentmap.put(newnode, keep.getEndNode());
-			}
+			jadeparentmap.put(newnode, keep.getEndNode());
 		}
 		//build tree and work with conflicts
 		System.out.println("root "+root.getChildCount());
-		for(JadeNode jn:jadeparentmap.keySet()){
-			if(jn.getObject("conflictrels")!=null){
-				String confstr = "";
-				@SuppressWarnings("unchecked")
-				ArrayList<Relationship> cr = (ArrayList<Relationship>)jn.getObject("conflictrels");
-				if(cr.size()>0){
-					confstr += ", \"altrels\": [";
-					for(int i=0;i<cr.size();i++){
-						String namestr = "";
-						if(taxonomy == false){
-							if(cr.get(i).getEndNode().hasProperty("name"))
-								namestr = (String) cr.get(i).getEndNode().getProperty("name");
-						}else{
-							namestr = (String)cr.get(i).getEndNode().getProperty("name");
-						}
-						confstr += "{\"parentname\": \""+namestr+"\",\"parentid\":\""+cr.get(i).getEndNode().getId()+"\",\"altrelid\":\""+cr.get(i).getId()+"\",\"source\":\""+cr.get(i).getProperty("source")+"\"}";
-						if(i+1 != cr.size())
-							confstr += ",";
+		for(Map.Entry<JadeNode,Node> entry : jadeparentmap.entrySet()){
+			JadeNode jn = entry.getKey();
+			@SuppressWarnings("unchecked")
+			ArrayList<Relationship> cr = (ArrayList<Relationship>)jn.getObject("conflictrels");
+			if(cr != null && cr.size() > 0){
+				StringBuilder confstr = new StringBuilder(", \"altrels\": [");
+				for(int i=0;i<cr.size();i++){
+					Relationship crel = cr.get(i);
+					Node crparent = crel.getEndNode();
+					TraversalCounters.loadProperties(2);
+					String namestr = "";
+					if(taxonomy == false){
+						if(crparent.hasProperty("name"))
+							namestr = (String) crparent.getProperty("name");
+					}else{
+						namestr = (String)crparent.getProperty("name");
 					}
-					confstr += "]\n";
-					jn.assocObject("jsonprint", confstr);
+					if(i != 0)
+						confstr.append(",");
+					confstr.append("{\"parentname\": \"").append(namestr)
+						.append("\",\"parentid\":\"").append(crparent.getId())
+						.append("\",\"altrelid\":\"").append(crel.getId())
+						.append("\",\"source\":\"").append(crel.getProperty("source")).append("\"}");
 				}
+				confstr.append("]\n");
+				jn.assocObject("jsonprint", confstr.toString());
 			}
-			try{
-//				System.out.println(jn.getName()+" "+nodejademap.get(jadeparentmap.get(jn)).getName());
-				nodejademap.get(jadeparentmap.get(jn)).addChild(jn);
-			}catch(java.lang.NullPointerException npe){
-				continue;
-			}
+			JadeNode parent = nodejademap.get(entry.getValue());
+			if (parent != null)
+				parent.addChild(jn);
 		}
 		System.out.println("root "+root.getChildCount());
 		
 		//get the parent so we can move back one node
 		Node parFirstNode = null;
 		for(Relationship rels : firstNode.getRelationships(Direction.OUTGOING, defaultsourcetype)){
-			if(((String)rels.getProperty("source")).compareTo(sourcename) == 0){
+			if(sourcename.equals(rels.getProperty("source"))){
 				parFirstNode = rels.getEndNode();
 				break;
 			}
@@ -400,10 +563,10 @@ public class TaxonomyExplorer extends TaxonomyBase{
 		
 		//construct the final string
 		JadeTree tree = new JadeTree(beforeroot);
-		String ret = "[\n";
-		ret += tree.getRoot().getJSON(false);
-		ret += ",{\"domsource\":\""+sourcename+"\"}]\n";
-		return ret;
+		StringBuilder ret = new StringBuilder("[\n");
+		ret.append(tree.getRoot().getJSON(false));
+		ret.append(",{\"domsource\":\"").append(sourcename).append("\"}]\n");
+		return ret.toString();
 	}
 	
 	public void runittest(){
@@ -411,149 +574,259 @@ public class TaxonomyExplorer extends TaxonomyBase{
 		shutdownDB();
 	}
 	
+	/**
+	 * Resolves the tip names of the tree in `treefilename` against the taxonomy and reports which tips are
+	 *	resolved (a single match within `focalgroup`), ambiguous (several matches within `focalgroup`),
+	 *	missing (no match at all) or outside the focal group (matches, but none of them within `focalgroup`).
+	 * 
+	 * The file may hold any number of newick or NEXUS trees (see TreeFileReader); the tip names of all of
+	 *	them are checked. Underscores in tip names are read as spaces. The names are looked up in parallel batches and
+	 *	membership in the focal group is tested against the precomputed set of its descendants.
+	 */
 	public void checkNamesInTree(String treefilename,String focalgroup){
-		PathFinder <Path> pf = GraphAlgoFactory.shortestPath(Traversal.pathExpanderForTypes(RelTypes.TAXCHILDOF, Direction.OUTGOING), 100);
 		Node focalnode = findTaxNodeByName(focalgroup);
-		String ts = "";
-		try{
-			BufferedReader br = new BufferedReader(new FileReader(treefilename));
-			ts = br.readLine();
-			br.close();
-		}catch(IOException ioe){
-			System.out.println("problem reading tree");
+		if (focalnode == null){
+			System.out.println("focal group not found");
+			return;
 		}
-		TreeReader tr = new TreeReader();
-		JadeTree jt = tr.readTree(ts);
-		System.out.println("tree read");
-		for(int i=0;i<jt.getExternalNodeCount();i++){
-			IndexHits<Node> hits = taxNodeIndex.get("name", jt.getExternalNode(i).getName().replace("_"," "));
-			int numh = hits.size();
-			if (numh == 0)
-				System.out.println(jt.getExternalNode(i).getName()+" gets NO hits");
-			if (numh > 1){
-				System.out.println(jt.getExternalNode(i).getName()+" gets "+numh+" hits");
-				for(Node tnode : hits){
-					Path tpath = pf.findSinglePath(tnode, focalnode);
+		BitSet focaldescendants = getDescendantIds(focalnode);
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		List<List<Node>> hits;
+		ArrayList<String> names;
+		try {
+			// every tree of the file (e.g. a bootstrap set) counts; each tip name is checked once
+			LinkedHashSet<String> tipnames = new LinkedHashSet<String>();
+			int ntrees = 0;
+			try{
+				Reader r = new FileReader(treefilename);
+				try {
+					TreeFileReader tfr = new TreeFileReader(r, pool, 64);
+					JadeTree jt;
+					while ((jt = tfr.readNextTree()) != null) {
+						ntrees += 1;
+						for(int i=0;i<jt.getExternalNodeCount();i++){
+							tipnames.add(jt.getExternalNode(i).getName().replace("_"," "));
+						}
+					}
+				} finally {
+					r.close();
 				}
+			}catch(IOException ioe){
+				System.out.println("problem reading tree: " + ioe.getMessage());
+				return;
+			}
+			System.out.println(ntrees + " trees read");
+			names = new ArrayList<String>(tipnames);
+			hits = new BatchNameResolver(taxNodeIndex, pool, 1000).resolve(names);
+		} finally {
+			pool.shutdown();
+		}
+		int resolved = 0;
+		ArrayList<String> ambiguous = new ArrayList<String>();
+		ArrayList<String> missing = new ArrayList<String>();
+		ArrayList<String> outside = new ArrayList<String>();
+		for(int i=0;i<names.size();i++){
+			List<Node> tiphits = hits.get(i);
+			if (tiphits.isEmpty()) {
+				missing.add(names.get(i));
+				continue;
+			}
+			int infocal = 0;
+			for (Node tnode : tiphits) {
+				if (focaldescendants.get(bitIndex(tnode.getId())))
+					infocal += 1;
 			}
-			hits.close();
+			if (infocal == 1)
+				resolved += 1;
+			else if (infocal > 1)
+				ambiguous.add(names.get(i) + " (" + infocal + " hits in " + focalgroup + ")");
+			else
+				outside.add(names.get(i) + " (" + tiphits.size() + " hits outside " + focalgroup + ")");
 		}
+		System.out.println("tips: " + names.size());
+		System.out.println("resolved: " + resolved);
+		System.out.println("ambiguous: " + ambiguous.size());
+		for (String s : ambiguous)
+			System.out.println("\t" + s);
+		System.out.println("missing: " + missing.size());
+		for (String s : missing)
+			System.out.println("\t" + s);
+		System.out.println("outside " + focalgroup + ": " + outside.size());
+		for (String s : outside)
+			System.out.println("\t" + s);
 	}
 	
 	/**
-	 * Right now this walks from the life node through the entire graph.
-	 * When there are conflicts, this prefers the NCBI branches.
+	 * @return the ids of `ancestor` and of every node that is a TAXCHILDOF descendant of it (through any source)
 	 */
-	public void makePreferredOTTOLRelationshipsConflicts(){
-		Transaction tx;
-		Node firstNode = findTaxNodeByName("life");
-		if (firstNode == null){
-			System.out.println("name not found");
-			return;
-		}
+	private BitSet getDescendantIds(Node ancestor){
 		TraversalDescription CHILDOF_TRAVERSAL = Traversal.description()
 				.relationships( RelTypes.TAXCHILDOF,Direction.INCOMING );
-		System.out.println(firstNode.getProperty("name"));
-		int count = 0;
-		tx = graphDb.beginTx();
+		BitSet ids = new BitSet();
+		for(Node friendnode : CHILDOF_TRAVERSAL.traverse(ancestor).nodes()){
+			ids.set(bitIndex(friendnode.getId()));
+		}
+		return ids;
+	}
+	
+	/**
+	 * When there are conflicts, this prefers the NCBI branches.
+	 */
+	public void makePreferredOTTOLRelationshipsConflicts(){
+		ArrayList<String> sourcepriority = new ArrayList<String>();
+		sourcepriority.add("ncbi");
+		makePreferredOTTOLRelationshipsConflicts(sourcepriority);
+	}
+	
+	/**
+	 * Prints the MRCA of each line of `queryfile`, a comma separated list of node ids and/or names,
+	 *	as "line<tab>mrca node id<tab>mrca name" (the id is -1 when there is no common ancestor).
+	 *	Names that match no node, or more than one, are reported and left out of their query.
+	 * @param fallbacksource the source used for nodes without a preferred parent (see TaxonomyTreeIndex)
+	 */
+	public void mrcaBatch(String queryfile, String fallbacksource){
+		long start = System.currentTimeMillis();
+		LCAIndex lca = new LCAIndex(TaxonomyTreeIndex.build(graphDb, fallbacksource));
+		TaxonomyTreeIndex tree = lca.getTree();
+		System.out.println("indexed " + tree.size() + " taxa in " + (System.currentTimeMillis() - start) + " ms");
+		BatchNameResolver resolver = new BatchNameResolver(taxNodeIndex, null, 1);
+		int nqueries = 0;
+		start = System.currentTimeMillis();
 		try{
-			for(Node friendnode : CHILDOF_TRAVERSAL.traverse(firstNode).nodes()){
-				boolean conflict = false;
-				String endNode = "";
-				Relationship ncbirel = null;
-				Relationship ottolrel = null;
-				for(Relationship rel : friendnode.getRelationships(Direction.OUTGOING)){
-					if (rel.getEndNode() == rel.getStartNode()){
-						continue;
-					}else{
-						if (endNode == "")
-							endNode = (String) rel.getEndNode().getProperty("name");
-						if ((String)rel.getEndNode().getProperty("name") != endNode){
-							conflict = true;
-						}
-						if(((String)rel.getProperty("source")).compareTo("ncbi")==0)
-							ncbirel = rel;
-					}
+			BufferedReader br = new BufferedReader(new FileReader(queryfile));
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.trim().length() == 0)
+					continue;
+				String [] tokens = line.split(",");
+				ArrayList<Integer> indexes = new ArrayList<Integer>(tokens.length);
+				for (int i = 0; i < tokens.length; i++) {
+					int index = treeIndexOf(tokens[i].trim(), tree, resolver);
+					if (index >= 0)
+						indexes.add(index);
 				}
-				if (conflict && ncbirel != null){
-					count += 1;
-//					System.out.println("would make one from "+ncbirel.getStartNode().getProperty("name")+" "+ncbirel.getEndNode().getProperty("name"));
-					if(ncbirel.getStartNode()!=ncbirel.getEndNode()){
-						ncbirel.getStartNode().createRelationshipTo(ncbirel.getEndNode(), RelTypes.PREFTAXCHILDOF);
-						Relationship newrel2 = ncbirel.getStartNode().createRelationshipTo(ncbirel.getEndNode(), RelTypes.TAXCHILDOF);
-						newrel2.setProperty("source", "ottol");
-					}else{
-						System.out.println("would make cycle from "+ncbirel.getEndNode().getProperty("name"));
-					}
-					
+				int [] ix = new int[indexes.size()];
+				for (int i = 0; i < ix.length; i++)
+					ix[i] = indexes.get(i);
+				int mrca = lca.mrca(ix);
+				if (mrca < 0) {
+					System.out.println(line + "\t-1\t");
+				} else {
+					long mrcaid = tree.getNodeId(mrca);
+					System.out.println(line + "\t" + mrcaid + "\t" + graphDb.getNodeById(mrcaid).getProperty("name", ""));
 				}
-				if(count % transaction_iter == 0)
-					System.out.println(count);
+				nqueries += 1;
+			}
+			br.close();
+		}catch(IOException ioe){
+			System.out.println("problem reading " + queryfile);
+			return;
+		}
+		System.out.println("answered " + nqueries + " queries in " + (System.currentTimeMillis() - start) + " ms");
+	}
+	
+	/**
+	 * Prints the lineage, from the root down, of each of the `queries` (node ids or names) in the
+	 *	preferred tree, one "name (node id, source)" line per taxon.
+	 * @param fallbacksource the source used for nodes without a preferred parent (see TaxonomyTreeIndex)
+	 */
+	public void printLineages(List<String> queries, String fallbacksource){
+		long start = System.currentTimeMillis();
+		TaxonomyTreeIndex tree = TaxonomyTreeIndex.build(graphDb, fallbacksource);
+		System.out.println("indexed " + tree.size() + " taxa in " + (System.currentTimeMillis() - start) + " ms");
+		BatchNameResolver resolver = new BatchNameResolver(taxNodeIndex, null, 1);
+		for (String query : queries) {
+			int index = treeIndexOf(query.trim(), tree, resolver);
+			if (index < 0)
+				continue;
+			System.out.println(query);
+			int [] lineage = tree.getLineage(index);
+			for (int i = 0; i < lineage.length; i++) {
+				String source = tree.getParentSource(lineage[i]);
+				System.out.println("\t" + tree.getName(lineage[i]) + " (" + tree.getNodeId(lineage[i]) + (source == null ? "" : ", " + source) + ")");
 			}
-			tx.success();
-		}finally{
-			tx.finish();
 		}
 	}
 	
+	/**
+	 * @return the tree index of the node with the id or (unique) name `token`, or -1 (after saying why) if there is none
+	 */
+	private static int treeIndexOf(String token, TaxonomyTreeIndex tree, BatchNameResolver resolver){
+		long nodeid = -1;
+		if (token.matches("[0-9]+")) {
+			nodeid = Long.parseLong(token);
+		} else {
+			List<Node> matches = resolver.lookup(token);
+			if (matches.size() != 1) {
+				System.out.println("skipping " + token + ": " + matches.size() + " matching nodes");
+				return -1;
+			}
+			nodeid = matches.get(0).getId();
+		}
+		int index = tree.indexOf(nodeid);
+		if (index < 0)
+			System.out.println("skipping " + token + ": not in the taxonomy tree");
+		return index;
+	}
+	
+	/**
+	 * Reads the stores and name indexes into memory and builds the in-memory query structures once,
+	 *	printing how long each phase took. Run before starting a server on the same store this warms
+	 *	the operating system's page cache.
+	 */
+	public void warmUp(){
+		GraphWarmer gw = new GraphWarmer(graphDb);
+		gw.warmAll();
+		long start = System.currentTimeMillis();
+		NamePrefixIndex npi = NamePrefixIndex.build(graphDb);
+		gw.recordTiming("name prefix index (" + npi.size() + ")", System.currentTimeMillis() - start);
+		start = System.currentTimeMillis();
+		LCAIndex lca = new LCAIndex(TaxonomyTreeIndex.build(graphDb, null));
+		gw.recordTiming("mrca index (" + lca.getTree().size() + ")", System.currentTimeMillis() - start);
+		System.out.print(gw.getReport());
+	}
+	
+	/**
+	 * Gives every node whose TAXCHILDOF parents conflict a preferred relationship to the parent from the
+	 *	first source in `sourcepriority` that asserts one. The nodes below life are processed as checkpointed,
+	 *	parallel ranges of node ids (see PreferredConflictResolver), so a run that failed part way can simply
+	 *	be rerun.
+	 * @param sourcepriority source names, most preferred first
+	 */
+	public void makePreferredOTTOLRelationshipsConflicts(List<String> sourcepriority){
+		Node firstNode = findTaxNodeByName("life");
+		if (firstNode == null){
+			System.out.println("name not found");
+			return;
+		}
+		File checkpointfile = new File(graphDb.getStoreDir(), "ottol_conflicts.checkpoint");
+		PreferredConflictResolver pcr = new PreferredConflictResolver(graphDb, sourcepriority,
+				Runtime.getRuntime().availableProcessors(), transaction_iter, checkpointfile);
+		int count = pcr.resolve(firstNode);
+		System.out.println("resolved conflicts for " + count + " nodes preferring " + sourcepriority);
+	}
+	
+	/**
+	 * Gives every node below the life node that does not have a preferred parent yet a PREFTAXCHILDOF
+	 *	(and an "ottol" TAXCHILDOF) relationship to its first parent, visiting each node once from the
+	 *	top down (see PreferredTreeBuilder). Taxonomy nodes that life does not reach are reported at the end.
+	 */
 	public void makePreferredOTTOLRelationshipsNOConflicts(){
-		Transaction tx;
 		Node firstNode = findTaxNodeByName("life");
 		if (firstNode == null){
 			System.out.println("name not found");
 			return;
 		}
-		TraversalDescription CHILDOF_TRAVERSAL = Traversal.description()
-				.relationships( RelTypes.TAXCHILDOF,Direction.INCOMING );
 		System.out.println(firstNode.getProperty("name"));
-		int count = 0;
-		tx = graphDb.beginTx();
-		try{
-			for(Node friendnode : CHILDOF_TRAVERSAL.traverse(firstNode).nodes()){
-				if(friendnode.hasRelationship(Direction.INCOMING) == false){//is tip
-					Node curnode = friendnode;
-					while(curnode.hasRelationship(Direction.OUTGOING)){
-//						System.out.println(curnode.getProperty("name"));
-						if(curnode.hasRelationship(Direction.OUTGOING,RelTypes.PREFTAXCHILDOF)){
-							Relationship trel = curnode.getSingleRelationship(RelTypes.PREFTAXCHILDOF, Direction.OUTGOING);
-//							System.out.println(trel.getStartNode().getId()+" "+trel.getEndNode().getId());
-							if(trel.getStartNode().getId() == trel.getEndNode().getId()){
-								break;
-							}
-							curnode = trel.getEndNode();
-						}else{
-							Node endnode = null;
-							for(Relationship trel: curnode.getRelationships(RelTypes.TAXCHILDOF,Direction.OUTGOING)){
-//								System.out.println(trel.getProperty("source")+" "+trel.getStartNode().getProperty("name")+" "+trel.getEndNode().getProperty("name"));
-								if (trel.getEndNode() == curnode){
-									continue;
-								}else{
-									endnode = trel.getEndNode();
-									break;
-								}
-							}
-							if(endnode == null){
-								System.out.println(curnode.getProperty("name"));
-								System.exit(0);
-							}
-							Relationship newrel = curnode.createRelationshipTo(endnode, RelTypes.PREFTAXCHILDOF);
-							Relationship newrel2 = curnode.createRelationshipTo(endnode, RelTypes.TAXCHILDOF);
-							newrel2.setProperty("source", "ottol");
-							curnode = endnode;
-							count += 1;
-						}
-					}
-				}
-				if(count % transaction_iter == 0){
-					System.out.println(count);
-					tx.success();
-					tx.finish();
-					tx = graphDb.beginTx();
-				}
+		PreferredTreeBuilder ptb = new PreferredTreeBuilder(graphDb, Runtime.getRuntime().availableProcessors(), transaction_iter);
+		int count = ptb.build(firstNode);
+		System.out.println("created preferred relationships for " + count + " nodes");
+		List<Long> unreachable = ptb.getUnreachableNodeIds();
+		if (unreachable.isEmpty() == false){
+			System.out.println(unreachable.size() + " taxonomy nodes are not reachable from life:");
+			for (Long id : unreachable){
+				System.out.println("\t" + id + " " + graphDb.getNodeById(id).getProperty("name", ""));
 			}
-			tx.success();
-		}finally{
-			tx.finish();
 		}
 	}
 	
@@ -0,0 +1,206 @@
+package opentree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import opentree.TaxonomyBase.RelTypes;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Read only in-memory snapshot of the preferred taxonomy tree, with the taxon nodes numbered densely
+ *	(0 .. size-1) and stored as parallel arrays.
+ *
+ * The parent of a node is the end of its PREFTAXCHILDOF relationship or, for a node without one, of
+ *	its TAXCHILDOF relationship from the fallback source. Nodes with neither are roots. The names of
+ *	the nodes and the sources of their parent relationships are kept too, so that lineages can be
+ *	answered without touching the graph.
+ */
+public class TaxonomyTreeIndex {
+	private static final String PREFERRED_SOURCE = "ottol";
+
+	private final long [] nodeids;
+	private final int [] parents;
+	private final String [] names;
+	private final String [] parentsources;
+	private final int [] firstchild;
+	private final int [] nextsibling;
+	private final int [] roots;
+	private final LongIntHashMap indexes;
+
+	/**
+	 * @param nodeids the node id of each index
+	 * @param parents the index of the parent of each index (-1 for roots)
+	 * @param names the name of each index
+	 * @param parentsources the source of the relationship to the parent of each index (null for roots)
+	 */
+	public TaxonomyTreeIndex(long [] nodeids, int [] parents, String [] names, String [] parentsources){
+		this.nodeids = nodeids;
+		this.parents = parents;
+		this.names = names;
+		this.parentsources = parentsources;
+		int n = nodeids.length;
+		indexes = new LongIntHashMap(n);
+		for (int i = 0; i < n; i++)
+			indexes.put(nodeids[i], i);
+		firstchild = new int[n];
+		nextsibling = new int[n];
+		Arrays.fill(firstchild, -1);
+		Arrays.fill(nextsibling, -1);
+		int nroots = 0;
+		// walking backwards keeps the children in index order
+		for (int i = n - 1; i >= 0; i--) {
+			int p = parents[i];
+			if (p < 0) {
+				nroots += 1;
+			} else {
+				nextsibling[i] = firstchild[p];
+				firstchild[p] = i;
+			}
+		}
+		roots = new int[nroots];
+		for (int i = 0, r = 0; i < n; i++)
+			if (parents[i] < 0)
+				roots[r++] = i;
+	}
+
+	/**
+	 * Reads the tree from every node in `graphDb` that takes part in a TAXCHILDOF or PREFTAXCHILDOF relationship
+	 * @param fallbacksource the source whose TAXCHILDOF parent is used for nodes without a preferred
+	 *		parent, or null to use preferred parents only
+	 */
+	public static TaxonomyTreeIndex build(GraphDatabaseService graphDb, String fallbacksource){
+		ArrayList<Node> nodes = new ArrayList<Node>();
+		for (Node nd : GlobalGraphOperations.at(graphDb).getAllNodes())
+			if (nd.hasRelationship(RelTypes.TAXCHILDOF, RelTypes.PREFTAXCHILDOF))
+				nodes.add(nd);
+		int n = nodes.size();
+		long [] nodeids = new long[n];
+		LongIntHashMap indexes = new LongIntHashMap(n);
+		for (int i = 0; i < n; i++) {
+			nodeids[i] = nodes.get(i).getId();
+			indexes.put(nodeids[i], i);
+		}
+		int [] parents = new int[n];
+		String [] names = new String[n];
+		String [] parentsources = new String[n];
+		for (int i = 0; i < n; i++) {
+			Node nd = nodes.get(i);
+			names[i] = (String) nd.getProperty("name", "");
+			Node parent = preferredParent(nd);
+			if (parent != null) {
+				parentsources[i] = PREFERRED_SOURCE;
+			} else if (fallbacksource != null) {
+				parent = sourceParent(nd, fallbacksource);
+				if (parent != null)
+					parentsources[i] = fallbacksource;
+			}
+			parents[i] = parent == null ? -1 : indexes.get(parent.getId());
+		}
+		return new TaxonomyTreeIndex(nodeids, parents, names, parentsources);
+	}
+
+	private static Node preferredParent(Node nd){
+		for (Relationship rel : nd.getRelationships(RelTypes.PREFTAXCHILDOF, Direction.OUTGOING))
+			if (rel.getEndNode().getId() != nd.getId())
+				return rel.getEndNode();
+		return null;
+	}
+
+	private static Node sourceParent(Node nd, String source){
+		for (Relationship rel : nd.getRelationships(RelTypes.TAXCHILDOF, Direction.OUTGOING))
+			if (rel.getEndNode().getId() != nd.getId() && source.equals(rel.getProperty("source", null)))
+				return rel.getEndNode();
+		return null;
+	}
+
+	/**
+	 * @return the number of nodes in the tree
+	 */
+	public int size(){
+		return nodeids.length;
+	}
+
+	/**
+	 * @return the dense index of the node with id `nodeid`, or -1 if it is not in the tree
+	 */
+	public int indexOf(long nodeid){
+		return indexes.get(nodeid);
+	}
+
+	public long getNodeId(int index){
+		return nodeids[index];
+	}
+
+	public String getName(int index){
+		return names[index];
+	}
+
+	/**
+	 * @return the source of the relationship from `index` to its parent ("ottol" for a preferred
+	 *		relationship), or null for a root
+	 */
+	public String getParentSource(int index){
+		return parentsources[index];
+	}
+
+	/**
+	 * @return the indexes from the root down to (and including) `index`. A lineage that runs into a
+	 *		cycle of parents stops before it repeats a node.
+	 */
+	public int [] getLineage(int index){
+		int len = 0;
+		for (int i = index; i >= 0 && len <= nodeids.length; i = parents[i])
+			len += 1;
+		if (len > nodeids.length)
+			return cyclicLineage(index);
+		int [] lineage = new int[len];
+		for (int i = index; i >= 0; i = parents[i])
+			lineage[--len] = i;
+		return lineage;
+	}
+
+	private int [] cyclicLineage(int index){
+		ArrayList<Integer> up = new ArrayList<Integer>();
+		HashSet<Integer> seen = new HashSet<Integer>();
+		for (int i = index; i >= 0 && seen.add(i); i = parents[i])
+			up.add(i);
+		int [] lineage = new int[up.size()];
+		for (int i = 0; i < lineage.length; i++)
+			lineage[i] = up.get(lineage.length - 1 - i);
+		return lineage;
+	}
+
+	/**
+	 * @return the index of the parent of `index`, or -1 for a root
+	 */
+	public int getParent(int index){
+		return parents[index];
+	}
+
+	/**
+	 * @return the index of the first child of `index`, or -1 for a tip
+	 */
+	public int getFirstChild(int index){
+		return firstchild[index];
+	}
+
+	/**
+	 * @return the index of the next child of the parent of `index`, or -1 for the last child
+	 */
+	public int getNextSibling(int index){
+		return nextsibling[index];
+	}
+
+	/**
+	 * @return the indexes of the nodes without a parent
+	 */
+	public int [] getRoots(){
+		return roots.clone();
+	}
+}
@@ -0,0 +1,80 @@
+package opentree;
+
+/**
+ * Per thread counts of the graph work done by the current request: nodes visited, relationships
+ *	expanded and properties loaded.
+ *
+ * The traversal code calls the static counting methods as it goes; whoever handles a request calls
+ *	`reset` before it starts and reads `current` when it is done. The counters are plain fields of
+ *	a thread local, so counting costs no synchronization. Work handed to other threads is counted there,
+ *	so those threads return a `snapshot` of their counts and the request thread `add`s it to its own.
+ */
+public final class TraversalCounters {
+	private static final ThreadLocal<TraversalCounters> counters = new ThreadLocal<TraversalCounters>(){
+		@Override
+		protected TraversalCounters initialValue(){
+			return new TraversalCounters();
+		}
+	};
+
+	public long nodes = 0;
+	public long relationships = 0;
+	public long properties = 0;
+
+	private TraversalCounters(){}
+
+	/**
+	 * @return the counters of the calling thread
+	 */
+	public static TraversalCounters current(){
+		return counters.get();
+	}
+
+	/**
+	 * Zeroes the counters of the calling thread
+	 */
+	public static void reset(){
+		TraversalCounters c = counters.get();
+		c.nodes = 0;
+		c.relationships = 0;
+		c.properties = 0;
+	}
+
+	/**
+	 * @return a copy of the counters of the calling thread
+	 */
+	public static TraversalCounters snapshot(){
+		TraversalCounters c = counters.get();
+		TraversalCounters copy = new TraversalCounters();
+		copy.nodes = c.nodes;
+		copy.relationships = c.relationships;
+		copy.properties = c.properties;
+		return copy;
+	}
+
+	/**
+	 * Adds `other` (counted by another thread on behalf of this one) to the counters of the calling thread
+	 */
+	public static void add(TraversalCounters other){
+		TraversalCounters c = counters.get();
+		c.nodes += other.nodes;
+		c.relationships += other.relationships;
+		c.properties += other.properties;
+	}
+
+	public static void visitNode(){
+		counters.get().nodes += 1;
+	}
+
+	public static void expandRelationship(){
+		counters.get().relationships += 1;
+	}
+
+	public static void loadProperty(){
+		counters.get().properties += 1;
+	}
+
+	public static void loadProperties(int n){
+		counters.get().properties += n;
+	}
+}
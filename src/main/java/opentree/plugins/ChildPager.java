@@ -0,0 +1,188 @@
+package opentree.plugins;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import opentree.LRUCache;
+import opentree.TaxonomyBase.RelTypes;
+import opentree.TraversalCounters;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * Hands out the TAXCHILDOF children of a node one page at a time. A child is listed once, with the first
+ *	of its relationships to the node, even if several sources (e.g. a source and "ottol") link it there.
+ *
+ * The relationships are read lazily from the node, so a page costs the same wherever it falls in a
+ *	node with tens of thousands of children. Between requests the live relationship iterator is kept
+ *	in an LRU keyed by the cursor that was returned with the page; a cursor whose iterator has been
+ *	evicted (or is being used by another request) still works, but falls back to skipping over the
+ *	relationships before its offset. The child counts of the listed children are kept in the response
+ *	cache, so they are only counted again after a write.
+ */
+public class ChildPager {
+
+	/**
+	 * One child relationship of a page
+	 */
+	public static class Child {
+		public final Relationship rel;
+		public final int childcount;
+
+		Child(Relationship rel, int childcount){
+			this.rel = rel;
+			this.childcount = childcount;
+		}
+	}
+
+	/**
+	 * A page of children and the cursor of the next page (null after the last page)
+	 */
+	public static class Page {
+		public final List<Child> children;
+		public final String cursor;
+
+		Page(List<Child> children, String cursor){
+			this.children = children;
+			this.cursor = cursor;
+		}
+	}
+
+	/**
+	 * Where a paging left off: `next` is the matching relationship at `offset`, the iterator is
+	 *	positioned just after it, and `seen` holds the children listed so far (including `next`)
+	 */
+	private static class Position {
+		final long nodeid;
+		final String source;
+		final Iterator<Relationship> rels;
+		final HashSet<Long> seen;
+		final Relationship next;
+		final long offset;
+
+		Position(long nodeid, String source, Iterator<Relationship> rels, HashSet<Long> seen, Relationship next, long offset){
+			this.nodeid = nodeid;
+			this.source = source;
+			this.rels = rels;
+			this.seen = seen;
+			this.next = next;
+			this.offset = offset;
+		}
+	}
+
+	private final LRUCache<Long,Position> live;
+	private final ResponseCache counts;
+	private final AtomicLong nextcursorid = new AtomicLong(System.nanoTime() & 0xffffffffL);
+
+	/**
+	 * @param counts where the child counts are cached
+	 * @param maxcursors the number of live iterators kept between requests
+	 */
+	public ChildPager(ResponseCache counts, int maxcursors){
+		this.counts = counts;
+		live = new LRUCache<Long,Position>(maxcursors);
+	}
+
+	/**
+	 * @param node the parent node
+	 * @param source only follow relationships with this "source" property, or null for all of them
+	 * @param cursor the cursor returned with the previous page, or null for the first page
+	 * @param pagesize the maximum number of children in the page
+	 */
+	public Page page(Node node, String source, String cursor, int pagesize){
+		if (pagesize < 1)
+			throw new IllegalArgumentException("page size must be positive: " + pagesize);
+		long cursorid = -1;
+		long offset = 0;
+		if (cursor != null) {
+			int dot = cursor.indexOf('.');
+			try {
+				cursorid = Long.parseLong(cursor.substring(0, dot), 36);
+				offset = Long.parseLong(cursor.substring(dot + 1), 36);
+			} catch (RuntimeException re) {
+				throw new IllegalArgumentException("invalid cursor: " + cursor);
+			}
+		}
+
+		// take the live iterator so that no other request advances it at the same time
+		Position pos = cursorid < 0 ? null : live.remove(cursorid);
+		Iterator<Relationship> rels;
+		HashSet<Long> seen;
+		Relationship rel;
+		if (pos != null && pos.nodeid == node.getId() && pos.offset == offset && equal(pos.source, source)) {
+			rels = pos.rels;
+			seen = pos.seen;
+			rel = pos.next;
+		} else {
+			rels = node.getRelationships(RelTypes.TAXCHILDOF, Direction.INCOMING).iterator();
+			seen = new HashSet<Long>();
+			for (long skipped = 0; skipped < offset && nextMatching(rels, source, seen) != null; skipped++)
+				;
+			rel = nextMatching(rels, source, seen);
+		}
+
+		// reading one child past the page tells whether there is a next page
+		ArrayList<Child> children = new ArrayList<Child>(pagesize);
+		while (rel != null && children.size() < pagesize) {
+			children.add(new Child(rel, countChildren(rel.getStartNode(), source)));
+			rel = nextMatching(rels, source, seen);
+		}
+		if (rel == null)
+			return new Page(children, null);
+
+		long newoffset = offset + children.size();
+		long newcursorid = nextcursorid.incrementAndGet();
+		live.put(newcursorid, new Position(node.getId(), source, rels, seen, rel, newoffset));
+		return new Page(children, Long.toString(newcursorid, 36) + "." + Long.toString(newoffset, 36));
+	}
+
+	/**
+	 * @param seen the ids of the children returned so far, to which the child of the returned relationship is added
+	 * @return the next relationship (from `source` if it is not null) from a child that is not in `seen`,
+	 *		or null when there are no more
+	 */
+	private static Relationship nextMatching(Iterator<Relationship> rels, String source, HashSet<Long> seen){
+		while (rels.hasNext()) {
+			Relationship rel = rels.next();
+			TraversalCounters.expandRelationship();
+			long childid = rel.getStartNode().getId();
+			if (childid == rel.getEndNode().getId() || seen.contains(childid))
+				continue;
+			if (source != null) {
+				TraversalCounters.loadProperty();
+				if (source.equals(rel.getProperty("source", null)) == false)
+					continue;
+			}
+			seen.add(childid);
+			return rel;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of distinct children of `nd` (through relationships from `source` if it is not null)
+	 */
+	private int countChildren(Node nd, String source){
+		String key = "childcount|" + nd.getId() + "|" + source;
+		String cached = counts.get(key);
+		if (cached != null)
+			return Integer.parseInt(cached);
+		long version = counts.getGraphVersion();
+		TraversalCounters.visitNode();
+		HashSet<Long> children = new HashSet<Long>();
+		Iterator<Relationship> rels = nd.getRelationships(RelTypes.TAXCHILDOF, Direction.INCOMING).iterator();
+		while (nextMatching(rels, source, children) != null)
+			;
+		counts.put(key, version, Integer.toString(children.size()));
+		return children.size();
+	}
+
+	private static boolean equal(String a, String b){
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -1,8 +1,24 @@
 package opentree.plugins;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
-import opentree.TaxonomyExplorer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import opentree.BatchNameResolver;
+import opentree.GraphWarmer;
+import opentree.JSONWriter;
+import opentree.LCAIndex;
+import opentree.NamePrefixIndex;
+import opentree.TaxonomyBase.RelTypes;
+import opentree.TaxonomyTreeIndex;
+
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -15,6 +31,17 @@ import org.neo4j.server.plugins.Source;
 
 public class GetJsons extends ServerPlugin {
 
+	// workers for the batch name lookups (daemon threads so that they never hold up a server shutdown)
+	private static final ExecutorService lookupPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+			new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "taxomachine-name-lookup");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	
+
 	@Description ("Return a JSON with alternative TAXONOMIC relationships noted and returned")
 	@PluginTarget (Node.class)
 	public String getConflictTaxJsonAltRel(@Source Node source,
@@ -24,30 +51,208 @@ public class GetJsons extends ServerPlugin {
 			@Parameter( name = "altrels", optional = true ) Long[] altrels,
 			@Description( "A new relationship nub." )
     		@Parameter( name = "nubrel", optional = true ) Long nubrel ){
-		String retst="";
-		TaxonomyExplorer ge = new TaxonomyExplorer();
+		PluginStats.Request req = PluginServices.forDatabase(source.getGraphDatabase()).getPluginStats().begin("getConflictTaxJsonAltRel", "node " + source.getId());
+		try {
+			return conflictTaxJsonAltRel(source, domsource, altrels, nubrel);
+		} finally {
+			req.end();
+		}
+	}
+	
+	private String conflictTaxJsonAltRel(Node source, String domsource, Long[] altrels, Long nubrel){
+		Node startnode = source;
 		if(nubrel != null){
 			Relationship rel = source.getGraphDatabase().getRelationshipById(nubrel);
-			ArrayList<Long> rels = new ArrayList<Long>();
-			if(altrels != null)
-				for (int i=0;i<altrels.length;i++){rels.add(altrels[i]);}
-			retst = ge.constructJSONAltRels(rel.getEndNode(), (String)rel.getProperty("source"),rels);
-		}else{
-			ArrayList<Long> rels = new ArrayList<Long>();
-			if(altrels != null)
-				for (int i=0;i<altrels.length;i++){rels.add(altrels[i]);}
-			retst = ge.constructJSONAltRels(source,domsource,rels);
+			startnode = rel.getEndNode();
+			domsource = (String)rel.getProperty("source");
+		}
+		ArrayList<Long> rels = new ArrayList<Long>();
+		if(altrels != null)
+			for (int i=0;i<altrels.length;i++){rels.add(altrels[i]);}
+		PluginServices services = PluginServices.forDatabase(source.getGraphDatabase());
+		ResponseCache cache = services.getResponseCache();
+		String key = altRelCacheKey(startnode.getId(), domsource, rels);
+		String retst = cache.get(key);
+		if(retst == null){
+			long version = cache.getGraphVersion();
+			retst = services.getTaxonomyExplorer().constructJSONAltRels(startnode, domsource, rels);
+			cache.put(key, version, retst);
 		}
 		return retst;
 	}
 	
+	private static String altRelCacheKey(long nodeid, String domsource, ArrayList<Long> altrels){
+		Long [] sorted = altrels.toArray(new Long[altrels.size()]);
+		Arrays.sort(sorted);
+		StringBuilder sb = new StringBuilder("altrels|");
+		sb.append(nodeid).append('|').append(domsource).append('|');
+		for (int i = 0; i < sorted.length; i++)
+			sb.append(sorted[i]).append(',');
+		return sb.toString();
+	}
+	
+	@Description ("Return one page of the TAXONOMIC children of a node, with a cursor for the next page")
+	@PluginTarget (Node.class)
+	public String getChildrenPage(@Source Node source,
+			@Description( "Only list relationships from this source (default all).")
+			@Parameter(name = "domsource", optional = true) String domsource,
+			@Description( "The cursor returned with the previous page (omit for the first page)." )
+			@Parameter( name = "cursor", optional = true ) String cursor,
+			@Description( "The maximum number of children in the page (default 100)." )
+			@Parameter( name = "pagesize", optional = true ) Integer pagesize ) throws IOException {
+		PluginStats.Request req = PluginServices.forDatabase(source.getGraphDatabase()).getPluginStats().begin("getChildrenPage", "node " + source.getId());
+		try {
+			return childrenPage(source, domsource, cursor, pagesize);
+		} finally {
+			req.end();
+		}
+	}
+	
+	private String childrenPage(Node source, String domsource, String cursor, Integer pagesize) throws IOException {
+		if (pagesize == null)
+			pagesize = 100;
+		ChildPager.Page page = PluginServices.forDatabase(source.getGraphDatabase()).getChildPager().page(source, domsource, cursor, pagesize);
+		StringWriter sw = new StringWriter();
+		JSONWriter jw = new JSONWriter(sw);
+		jw.beginObject();
+		jw.name("nodeid").value(source.getId());
+		jw.name("children").beginArray();
+		for (ChildPager.Child c : page.children) {
+			Node child = c.rel.getStartNode();
+			jw.beginObject();
+			jw.name("name").value((String) child.getProperty("name", ""));
+			jw.name("nodeid").value(child.getId());
+			jw.name("relid").value(c.rel.getId());
+			jw.name("source").value((String) c.rel.getProperty("source", ""));
+			jw.name("childcount").value(c.childcount);
+			jw.endObject();
+		}
+		jw.endArray();
+		jw.name("cursor");
+		if (page.cursor == null)
+			jw.nullValue();
+		else
+			jw.value(page.cursor);
+		jw.endObject();
+		return sw.toString();
+	}
+	
+	@Description ("Return a JSON object with the most recent common ancestor of a set of nodes in the preferred taxonomy")
+	@PluginTarget (GraphDatabaseService.class)
+	public String getMRCA(@Source GraphDatabaseService graphDb,
+			@Description("Ids of the nodes.")
+			@Parameter( name = "nodeids" ) Long[] nodeids,
+			@Description("The source whose parent is used for nodes without a preferred parent (default none).")
+			@Parameter( name = "fallbacksource", optional = true ) String fallbacksource ) throws IOException {
+		PluginStats.Request req = PluginServices.forDatabase(graphDb).getPluginStats().begin("getMRCA", nodeids.length + " nodes");
+		try {
+			return mrcaJSON(graphDb, nodeids, fallbacksource);
+		} finally {
+			req.end();
+		}
+	}
+	
+	private String mrcaJSON(GraphDatabaseService graphDb, Long[] nodeids, String fallbacksource) throws IOException {
+		PluginServices services = PluginServices.forDatabase(graphDb);
+		LCAIndex lca = services.getLCAIndex(fallbacksource);
+		TaxonomyTreeIndex tree = lca.getTree();
+		int [] indexes = new int[nodeids.length];
+		ArrayList<Long> unknown = new ArrayList<Long>();
+		int nknown = 0;
+		for (int i = 0; i < nodeids.length; i++) {
+			int index = tree.indexOf(nodeids[i]);
+			if (index < 0)
+				unknown.add(nodeids[i]);
+			else
+				indexes[nknown++] = index;
+		}
+		int mrca = lca.mrca(Arrays.copyOf(indexes, nknown));
+		StringWriter sw = new StringWriter();
+		JSONWriter jw = new JSONWriter(sw);
+		jw.beginObject();
+		jw.name("mrca");
+		if (mrca < 0) {
+			jw.nullValue();
+			jw.name("name").nullValue();
+		} else {
+			long mrcaid = tree.getNodeId(mrca);
+			jw.value(mrcaid);
+			jw.name("name").value((String) graphDb.getNodeById(mrcaid).getProperty("name", ""));
+		}
+		jw.name("unknown").beginArray();
+		for (Long id : unknown)
+			jw.value(id);
+		jw.endArray();
+		jw.endObject();
+		return sw.toString();
+	}
+	
+	@Description ("Return a JSON list with the lineage (root first, ending with the node itself) of each of the given nodes in the preferred taxonomy")
+	@PluginTarget (GraphDatabaseService.class)
+	public String getLineages(@Source GraphDatabaseService graphDb,
+			@Description("Ids of the nodes.")
+			@Parameter( name = "nodeids" ) Long[] nodeids,
+			@Description("The source whose parent is used for nodes without a preferred parent (default none).")
+			@Parameter( name = "fallbacksource", optional = true ) String fallbacksource ) throws IOException {
+		PluginStats.Request req = PluginServices.forDatabase(graphDb).getPluginStats().begin("getLineages", nodeids.length + " nodes");
+		try {
+			return lineagesJSON(graphDb, nodeids, fallbacksource);
+		} finally {
+			req.end();
+		}
+	}
+	
+	private String lineagesJSON(GraphDatabaseService graphDb, Long[] nodeids, String fallbacksource) throws IOException {
+		PluginServices services = PluginServices.forDatabase(graphDb);
+		TaxonomyTreeIndex tree = services.getTaxonomyTreeIndex(fallbacksource);
+		StringWriter sw = new StringWriter();
+		JSONWriter jw = new JSONWriter(sw);
+		jw.beginArray();
+		for (int i = 0; i < nodeids.length; i++) {
+			jw.beginObject();
+			jw.name("nodeid").value(nodeids[i]);
+			jw.name("lineage");
+			int index = tree.indexOf(nodeids[i]);
+			if (index < 0) {
+				jw.nullValue();
+			} else {
+				jw.beginArray();
+				int [] lineage = tree.getLineage(index);
+				for (int j = 0; j < lineage.length; j++) {
+					jw.beginObject();
+					jw.name("name").value(tree.getName(lineage[j]));
+					jw.name("nodeid").value(tree.getNodeId(lineage[j]));
+					jw.name("source").value(tree.getParentSource(lineage[j]));
+					jw.endObject();
+				}
+				jw.endArray();
+			}
+			jw.endObject();
+		}
+		jw.endArray();
+		return sw.toString();
+	}
+	
 	@Description ("Return a JSON with the node id given a name")
 	@PluginTarget (GraphDatabaseService.class)
 	public String getNodeIDJSONFromName(@Source GraphDatabaseService graphDb,
 			@Description("Name of node to find.")
 			@Parameter( name = "nodename", optional= true ) String nodename ){
-		String retst = "";
-		System.out.println(nodename);
+		PluginStats.Request req = PluginServices.forDatabase(graphDb).getPluginStats().begin("getNodeIDJSONFromName", nodename);
+		try {
+			return nodeIDJSONFromName(graphDb, nodename);
+		} finally {
+			req.end();
+		}
+	}
+	
+	private String nodeIDJSONFromName(GraphDatabaseService graphDb, String nodename){
+		ResponseCache cache = PluginServices.forDatabase(graphDb).getResponseCache();
+		String key = "nodeid|" + nodename;
+		String retst = cache.get(key);
+		if (retst != null)
+			return retst;
+		long version = cache.getGraphVersion();
 		IndexHits<Node> hits = graphDb.index().forNodes("taxNamedNodes").get("name",nodename);
 		try{
 			Node firstNode = hits.next();
@@ -60,6 +265,143 @@ public class GetJsons extends ServerPlugin {
 		}catch(java.lang.Exception jle){
 			retst = "[]";
 		}
+		cache.put(key, version, retst);
+		return retst;
+	}
+	
+	@Description ("Return a JSON list with every node (and the name of its preferred parent) for each of the given names")
+	@PluginTarget (GraphDatabaseService.class)
+	public String getNodeIDsJSONFromNames(@Source GraphDatabaseService graphDb,
+			@Description("Names of the nodes to find.")
+			@Parameter( name = "nodenames" ) String[] nodenames ) throws IOException {
+		PluginStats.Request req = PluginServices.forDatabase(graphDb).getPluginStats().begin("getNodeIDsJSONFromNames", nodenames.length + " names");
+		try {
+			return nodeIDsJSONFromNames(graphDb, nodenames);
+		} finally {
+			req.end();
+		}
+	}
+	
+	private String nodeIDsJSONFromNames(GraphDatabaseService graphDb, String[] nodenames) throws IOException {
+		ResponseCache cache = PluginServices.forDatabase(graphDb).getResponseCache();
+		StringBuilder key = new StringBuilder("nodeids");
+		for (int i = 0; i < nodenames.length; i++)
+			key.append('\n').append(nodenames[i]);
+		String retst = cache.get(key.toString());
+		if (retst != null)
+			return retst;
+		long version = cache.getGraphVersion();
+		BatchNameResolver resolver = new BatchNameResolver(graphDb.index().forNodes("taxNamedNodes"), lookupPool, 100);
+		List<String> names = Arrays.asList(nodenames);
+		List<List<Node>> hits = resolver.resolve(names);
+		StringWriter sw = new StringWriter();
+		JSONWriter jw = new JSONWriter(sw);
+		jw.beginArray();
+		for (int i = 0; i < names.size(); i++) {
+			jw.beginObject();
+			jw.name("name").value(names.get(i));
+			jw.name("matches").beginArray();
+			for (Node nd : hits.get(i)) {
+				jw.beginObject();
+				jw.name("nodeid").value(nd.getId());
+				jw.name("parentname");
+				Relationship prefrel = null;
+				for (Relationship rel : nd.getRelationships(RelTypes.PREFTAXCHILDOF, Direction.OUTGOING)) {
+					prefrel = rel;
+					break;
+				}
+				if (prefrel == null)
+					jw.nullValue();
+				else
+					jw.value((String) prefrel.getEndNode().getProperty("name", ""));
+				jw.endObject();
+			}
+			jw.endArray();
+			jw.endObject();
+		}
+		jw.endArray();
+		retst = sw.toString();
+		cache.put(key.toString(), version, retst);
 		return retst;
 	}
+	
+	@Description ("Return a JSON list of the taxon names and synonyms that start with a prefix (ignoring case), with their node ids")
+	@PluginTarget (GraphDatabaseService.class)
+	public String autocompleteName(@Source GraphDatabaseService graphDb,
+			@Description("The start of the name.")
+			@Parameter( name = "prefix" ) String prefix,
+			@Description("The maximum number of names to return (default 10).")
+			@Parameter( name = "limit", optional = true ) Integer limit ) throws IOException {
+		PluginStats.Request req = PluginServices.forDatabase(graphDb).getPluginStats().begin("autocompleteName", prefix);
+		try {
+			return autocomplete(graphDb, prefix, limit);
+		} finally {
+			req.end();
+		}
+	}
+	
+	private String autocomplete(GraphDatabaseService graphDb, String prefix, Integer limit) throws IOException {
+		if (limit == null)
+			limit = 10;
+		List<NamePrefixIndex.Completion> completions = PluginServices.forDatabase(graphDb).getNamePrefixIndex().complete(prefix, limit);
+		StringWriter sw = new StringWriter();
+		JSONWriter jw = new JSONWriter(sw);
+		jw.beginArray();
+		for (NamePrefixIndex.Completion c : completions) {
+			jw.beginObject();
+			jw.name("name").value(c.name);
+			jw.name("nodeid").value(c.nodeid);
+			jw.name("synonym").value(c.synonym);
+			jw.endObject();
+		}
+		jw.endArray();
+		return sw.toString();
+	}
+	
+	@Description ("Return a JSON object with the size and hit/miss counts of the plugin response cache")
+	@PluginTarget (GraphDatabaseService.class)
+	public String getResponseCacheStats(@Source GraphDatabaseService graphDb) throws IOException {
+		ResponseCache cache = PluginServices.forDatabase(graphDb).getResponseCache();
+		StringWriter sw = new StringWriter();
+		JSONWriter jw = new JSONWriter(sw);
+		jw.beginObject();
+		jw.name("entries").value(cache.size());
+		jw.name("hits").value(cache.getHits());
+		jw.name("misses").value(cache.getMisses());
+		jw.name("graphversion").value(cache.getGraphVersion());
+		jw.endObject();
+		return sw.toString();
+	}
+	
+	@Description ("Return a JSON object with the latency histograms, traversal costs and slowest requests of each plugin method")
+	@PluginTarget (GraphDatabaseService.class)
+	public String getPluginStats(@Source GraphDatabaseService graphDb){
+		return PluginServices.forDatabase(graphDb).getPluginStats().getStatsJSON();
+	}
+	
+	@Description ("Warm the database up (if that has not been done yet) and return a JSON object with the readiness flag and the time each warm-up phase took")
+	@PluginTarget (GraphDatabaseService.class)
+	public String warmUp(@Source GraphDatabaseService graphDb) throws IOException {
+		PluginServices.forDatabase(graphDb).warmUp();
+		return getWarmupStatus(graphDb);
+	}
+	
+	@Description ("Return a JSON object with the readiness flag and the time each warm-up phase has taken so far")
+	@PluginTarget (GraphDatabaseService.class)
+	public String getWarmupStatus(@Source GraphDatabaseService graphDb) throws IOException {
+		PluginServices services = PluginServices.forDatabase(graphDb);
+		GraphWarmer gw = services.getWarmer();
+		StringWriter sw = new StringWriter();
+		JSONWriter jw = new JSONWriter(sw);
+		jw.beginObject();
+		jw.name("ready").value(services.isReady());
+		jw.name("started").value(gw != null);
+		jw.name("timings").beginObject();
+		if (gw != null)
+			for (Map.Entry<String,Long> e : gw.getTimings().entrySet())
+				jw.name(e.getKey()).value(e.getValue());
+		jw.endObject();
+		jw.endObject();
+		return sw.toString();
+	}
 }
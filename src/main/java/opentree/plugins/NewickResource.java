@@ -0,0 +1,81 @@
+package opentree.plugins;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+
+/**
+ * Streams the TAXONOMIC subtree of a node as newick (see TaxonomyExplorer.writeNewickSubtree) straight
+ *	into the response, gzipped if the client accepts that, so that no subtree is ever held in memory.
+ *
+ * This is an unmanaged extension rather than a server plugin, because a plugin can only return a whole
+ *	value. To mount it under /taxomachine, add this to conf/neo4j-server.properties:
+ *
+ *	org.neo4j.server.thirdparty_jaxrs_classes=opentree.plugins=/taxomachine
+ *
+ * and then GET /taxomachine/newick/{nodeid}?maxdepth=3&domsource=ncbi (or &preferredonly=true).
+ */
+@Path("/newick")
+public class NewickResource {
+	private final GraphDatabaseService graphDb;
+
+	public NewickResource(@Context GraphDatabaseService graphDb){
+		this.graphDb = graphDb;
+	}
+
+	@GET
+	@Path("/{nodeid}")
+	@Produces("text/plain; charset=UTF-8")
+	public Response getNewickSubtree(@PathParam("nodeid") long nodeid,
+			@QueryParam("maxdepth") @DefaultValue("-1") final int maxdepth,
+			@QueryParam("domsource") final String domsource,
+			@QueryParam("preferredonly") @DefaultValue("false") final boolean preferredonly,
+			@HeaderParam("Accept-Encoding") String acceptencoding){
+		final Node source;
+		try {
+			source = graphDb.getNodeById(nodeid);
+		} catch (NotFoundException nfe) {
+			return Response.status(Response.Status.NOT_FOUND).entity("no node " + nodeid + "\n").build();
+		}
+		final boolean gzip = acceptencoding != null && acceptencoding.toLowerCase().contains("gzip");
+		final PluginServices services = PluginServices.forDatabase(graphDb);
+		StreamingOutput stream = new StreamingOutput(){
+			public void write(OutputStream os) throws IOException, WebApplicationException {
+				PluginStats.Request req = services.getPluginStats().begin("getNewickSubtree", "node " + source.getId());
+				try {
+					GZIPOutputStream gz = gzip ? new GZIPOutputStream(os) : null;
+					Writer out = new BufferedWriter(new OutputStreamWriter(gzip ? gz : os, "UTF-8"));
+					services.getTaxonomyExplorer().writeNewickSubtree(source, out, maxdepth, domsource, preferredonly);
+					// the container closes the response stream itself
+					if (gzip)
+						gz.finish();
+				} finally {
+					req.end();
+				}
+			}
+		};
+		Response.ResponseBuilder rb = Response.ok(stream).header("Vary", "Accept-Encoding");
+		if (gzip)
+			rb.header("Content-Encoding", "gzip");
+		return rb.build();
+	}
+}
@@ -0,0 +1,201 @@
+package opentree.plugins;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import opentree.GraphWarmer;
+import opentree.LCAIndex;
+import opentree.NamePrefixIndex;
+import opentree.TaxonomyExplorer;
+import opentree.TaxonomyTreeIndex;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.InternalAbstractGraphDatabase;
+
+/**
+ * The in-memory query structures that the server plugins share for one database. The server builds
+ *	them at startup through warmUp (see WarmupLifecycle); a request that comes first builds the structure
+ *	it needs itself. Each structure is then kept current by the structure itself.
+ *
+ * The cheap structures are created with the services. The expensive ones are built under a lock of their
+ *	own and then read without locking, so a build only holds up the requests that need that structure.
+ */
+public class PluginServices {
+	private static final HashMap<GraphDatabaseService, PluginServices> services = new HashMap<GraphDatabaseService, PluginServices>();
+
+	private final GraphDatabaseService graphDb;
+	private volatile NamePrefixIndex nameindex = null;
+	private final Object nameindexlock = new Object();
+	private final ResponseCache responsecache;
+	private final TaxonomyExplorer explorer;
+	private final ChildPager childpager;
+	private final PluginStats pluginstats = new PluginStats();
+	private final TaxonomyVersion taxonomyversion;
+	// LCA indexes by fallback source (the empty string for none), and the lock that each is built under
+	private final ConcurrentHashMap<String,VersionedLCA> lcaindexes = new ConcurrentHashMap<String,VersionedLCA>();
+	private final ConcurrentHashMap<String,Object> lcalocks = new ConcurrentHashMap<String,Object>();
+	private final Object warmuplock = new Object();
+	private volatile GraphWarmer warmer = null;
+	private volatile boolean ready = false;
+
+	// an LCA index with the taxonomy version it was built at
+	private static class VersionedLCA {
+		final LCAIndex lca;
+		final long version;
+
+		VersionedLCA(LCAIndex lca, long version){
+			this.lca = lca;
+			this.version = version;
+		}
+	}
+
+	private PluginServices(GraphDatabaseService graphDb){
+		this.graphDb = graphDb;
+		taxonomyversion = new TaxonomyVersion(graphDb);
+		responsecache = new ResponseCache(graphDb, 5000);
+		explorer = new TaxonomyExplorer(graphDb);
+		childpager = new ChildPager(responsecache, 1000);
+		if (graphDb instanceof InternalAbstractGraphDatabase)
+			pluginstats.registerMBean(((InternalAbstractGraphDatabase) graphDb).getStoreDir());
+		else
+			pluginstats.registerMBean(graphDb.toString());
+	}
+
+	/**
+	 * @return the services for `graphDb`, creating them on the first call
+	 */
+	public static synchronized PluginServices forDatabase(GraphDatabaseService graphDb){
+		PluginServices ps = services.get(graphDb);
+		if (ps == null) {
+			ps = new PluginServices(graphDb);
+			services.put(graphDb, ps);
+		}
+		return ps;
+	}
+
+	/**
+	 * Drops the services for `graphDb`, if there are any, and takes their statistics off JMX. Call it
+	 *	when the database shuts down (see WarmupLifecycle.stop); a later forDatabase starts afresh.
+	 */
+	public static synchronized void release(GraphDatabaseService graphDb){
+		PluginServices ps = services.remove(graphDb);
+		if (ps != null)
+			ps.pluginstats.unregisterMBean();
+	}
+
+	/**
+	 * @return the prefix index over taxon names and synonyms (built from the taxon name indexes by warmUp, or by
+	 *		the first call if that comes before the warm-up)
+	 */
+	public NamePrefixIndex getNamePrefixIndex(){
+		NamePrefixIndex ni = nameindex;
+		if (ni != null)
+			return ni;
+		synchronized (nameindexlock) {
+			if (nameindex == null) {
+				long start = System.currentTimeMillis();
+				nameindex = NamePrefixIndex.build(graphDb);
+				System.out.println("built name prefix index of " + nameindex.size() + " names in " + (System.currentTimeMillis() - start) + " ms");
+			}
+			return nameindex;
+		}
+	}
+
+	/**
+	 * @return the cache of plugin responses, which is emptied by every committed write
+	 */
+	public ResponseCache getResponseCache(){
+		return responsecache;
+	}
+
+	/**
+	 * @return the explorer that every plugin request against this database shares
+	 */
+	public TaxonomyExplorer getTaxonomyExplorer(){
+		return explorer;
+	}
+
+	/**
+	 * @return the pager that keeps the iterators of children listings between requests
+	 */
+	public ChildPager getChildPager(){
+		return childpager;
+	}
+
+	/**
+	 * @return the request statistics of the plugin methods (registered with JMX when the services were created)
+	 */
+	public PluginStats getPluginStats(){
+		return pluginstats;
+	}
+
+	/**
+	 * @param fallbacksource see TaxonomyTreeIndex.build
+	 * @return the MRCA index over the preferred tree, rebuilt if the taxonomy (see TaxonomyVersion) has changed
+	 *		since it was last built. Only the callers that want the same index wait for a rebuild.
+	 */
+	public LCAIndex getLCAIndex(String fallbacksource){
+		String key = fallbacksource == null ? "" : fallbacksource;
+		VersionedLCA built = lcaindexes.get(key);
+		if (built != null && built.version == taxonomyversion.get())
+			return built.lca;
+		lcalocks.putIfAbsent(key, new Object());
+		synchronized (lcalocks.get(key)) {
+			// read before building, so that a write made during the build leaves the new index stale
+			long version = taxonomyversion.get();
+			built = lcaindexes.get(key);
+			if (built != null && built.version == version)
+				return built.lca;
+			long start = System.currentTimeMillis();
+			LCAIndex lca = new LCAIndex(TaxonomyTreeIndex.build(graphDb, fallbacksource));
+			lcaindexes.put(key, new VersionedLCA(lca, version));
+			System.out.println("built mrca index of " + lca.getTree().size() + " taxa in " + (System.currentTimeMillis() - start) + " ms");
+			return lca;
+		}
+	}
+
+	/**
+	 * @return the in-memory preferred tree (shared with the MRCA index of the same fallback source)
+	 */
+	public TaxonomyTreeIndex getTaxonomyTreeIndex(String fallbacksource){
+		return getLCAIndex(fallbacksource).getTree();
+	}
+
+	/**
+	 * Reads the stores and name indexes into memory and builds the structures above, then marks the
+	 *	services as ready. Only the first call does any work; calls made meanwhile wait for it to finish.
+	 *	Requests are served meanwhile: they only wait if they need a structure while it is being built.
+	 */
+	public void warmUp(){
+		synchronized (warmuplock) {
+			if (warmer != null)
+				return;
+			GraphWarmer gw = new GraphWarmer(graphDb);
+			// published before it runs so that the timings can be watched while it does
+			warmer = gw;
+			gw.warmAll();
+			long start = System.currentTimeMillis();
+			getNamePrefixIndex();
+			gw.recordTiming("name prefix index", System.currentTimeMillis() - start);
+			start = System.currentTimeMillis();
+			getLCAIndex(null);
+			gw.recordTiming("mrca index", System.currentTimeMillis() - start);
+			ready = true;
+			System.out.print("taxomachine warm-up done\n" + gw.getReport());
+		}
+	}
+
+	/**
+	 * @return whether warmUp has finished
+	 */
+	public boolean isReady(){
+		return ready;
+	}
+
+	/**
+	 * @return the warm-up timings so far, or null if warmUp has not been started
+	 */
+	public GraphWarmer getWarmer(){
+		return warmer;
+	}
+}
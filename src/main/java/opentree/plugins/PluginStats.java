@@ -0,0 +1,237 @@
+package opentree.plugins;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import opentree.JSONWriter;
+import opentree.TraversalCounters;
+
+/**
+ * Latency histograms and traversal costs (see TraversalCounters) of the plugin requests, per endpoint,
+ *	plus the slowest requests seen so far so that slow clades can be tracked down.
+ *
+ * Latencies go into power of two buckets of microseconds, so recording a request is a handful of
+ *	atomic increments. The statistics are exposed over JMX (PluginStatsMBean) and by the
+ *	getPluginStats plugin method.
+ */
+public class PluginStats implements PluginStatsMBean {
+	// bucket i counts the requests that took [2^i, 2^(i+1)) microseconds (bucket 0 also takes anything faster)
+	private static final int NBUCKETS = 40;
+	private static final int NSLOWEST = 20;
+
+	private ObjectName mbeanname = null;
+
+	private static class EndpointStats {
+		final AtomicLongArray buckets = new AtomicLongArray(NBUCKETS);
+		final AtomicLong count = new AtomicLong(0);
+		final AtomicLong totalmicros = new AtomicLong(0);
+		final AtomicLong maxmicros = new AtomicLong(0);
+		final AtomicLong nodes = new AtomicLong(0);
+		final AtomicLong relationships = new AtomicLong(0);
+		final AtomicLong properties = new AtomicLong(0);
+	}
+
+	private static class SlowRequest {
+		final String endpoint;
+		final String detail;
+		final long micros;
+		final long nodes;
+		final long relationships;
+		final long properties;
+
+		SlowRequest(String endpoint, String detail, long micros, TraversalCounters tc){
+			this.endpoint = endpoint;
+			this.detail = detail;
+			this.micros = micros;
+			this.nodes = tc.nodes;
+			this.relationships = tc.relationships;
+			this.properties = tc.properties;
+		}
+	}
+
+	private static final Comparator<SlowRequest> FASTEST_FIRST = new Comparator<SlowRequest>(){
+		public int compare(SlowRequest a, SlowRequest b){
+			return a.micros < b.micros ? -1 : (a.micros == b.micros ? 0 : 1);
+		}
+	};
+
+	/**
+	 * A request that is being timed; call `end` exactly once when it is done
+	 */
+	public class Request {
+		private final String endpoint;
+		private final String detail;
+		private final long start;
+
+		private Request(String endpoint, String detail){
+			this.endpoint = endpoint;
+			this.detail = detail;
+			TraversalCounters.reset();
+			this.start = System.nanoTime();
+		}
+
+		public void end(){
+			record(endpoint, detail, (System.nanoTime() - start) / 1000, TraversalCounters.current());
+		}
+	}
+
+	private final ConcurrentHashMap<String,EndpointStats> endpoints = new ConcurrentHashMap<String,EndpointStats>();
+	private final PriorityQueue<SlowRequest> slowest = new PriorityQueue<SlowRequest>(NSLOWEST, FASTEST_FIRST);
+
+	/**
+	 * Starts timing a request to `endpoint` and zeroes the traversal counters of the calling thread
+	 * @param detail what the request was about (e.g. a node id), kept with the slowest requests
+	 */
+	public Request begin(String endpoint, String detail){
+		return new Request(endpoint, detail);
+	}
+
+	/**
+	 * Makes the statistics visible over JMX as opentree:type=PluginStats,name=`name`
+	 */
+	public synchronized void registerMBean(String name){
+		try {
+			ObjectName on = new ObjectName("opentree:type=PluginStats,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+			mbeanname = on;
+		} catch (JMException jme) {
+			System.out.println("could not register the plugin statistics with JMX: " + jme.getMessage());
+		}
+	}
+
+	/**
+	 * Removes the statistics from JMX again, if registerMBean put them there
+	 */
+	public synchronized void unregisterMBean(){
+		if (mbeanname == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanname);
+		} catch (JMException jme) {
+			System.out.println("could not unregister the plugin statistics from JMX: " + jme.getMessage());
+		}
+		mbeanname = null;
+	}
+
+	private void record(String endpoint, String detail, long micros, TraversalCounters tc){
+		EndpointStats es = endpoints.get(endpoint);
+		if (es == null) {
+			endpoints.putIfAbsent(endpoint, new EndpointStats());
+			es = endpoints.get(endpoint);
+		}
+		es.buckets.incrementAndGet(bucket(micros));
+		es.count.incrementAndGet();
+		es.totalmicros.addAndGet(micros);
+		long max;
+		while (micros > (max = es.maxmicros.get()) && es.maxmicros.compareAndSet(max, micros) == false)
+			;
+		es.nodes.addAndGet(tc.nodes);
+		es.relationships.addAndGet(tc.relationships);
+		es.properties.addAndGet(tc.properties);
+		synchronized (slowest) {
+			if (slowest.size() < NSLOWEST) {
+				slowest.add(new SlowRequest(endpoint, detail, micros, tc));
+			} else if (slowest.peek().micros < micros) {
+				slowest.poll();
+				slowest.add(new SlowRequest(endpoint, detail, micros, tc));
+			}
+		}
+	}
+
+	private static int bucket(long micros){
+		int b = 63 - Long.numberOfLeadingZeros(micros);
+		return b < 0 ? 0 : Math.min(b, NBUCKETS - 1);
+	}
+
+	public String [] getEndpoints(){
+		return new TreeMap<String,EndpointStats>(endpoints).keySet().toArray(new String[0]);
+	}
+
+	public long getRequestCount(){
+		long count = 0;
+		for (EndpointStats es : endpoints.values())
+			count += es.count.get();
+		return count;
+	}
+
+	public void reset(){
+		endpoints.clear();
+		synchronized (slowest) {
+			slowest.clear();
+		}
+	}
+
+	public String getStatsJSON(){
+		StringWriter sw = new StringWriter();
+		try {
+			writeJSON(new JSONWriter(sw));
+		} catch (IOException ioe) {
+			// a StringWriter does not throw
+			throw new RuntimeException(ioe);
+		}
+		return sw.toString();
+	}
+
+	/**
+	 * Writes the statistics as {"endpoints":{name:{...}}, "slowest":[...]} with latencies in milliseconds
+	 */
+	public void writeJSON(JSONWriter jw) throws IOException {
+		jw.beginObject();
+		jw.name("endpoints").beginObject();
+		for (Map.Entry<String,EndpointStats> entry : new TreeMap<String,EndpointStats>(endpoints).entrySet()) {
+			EndpointStats es = entry.getValue();
+			long count = es.count.get();
+			jw.name(entry.getKey()).beginObject();
+			jw.name("count").value(count);
+			jw.name("meanms").value(count == 0 ? 0 : es.totalmicros.get() / 1000.0 / count);
+			jw.name("maxms").value(es.maxmicros.get() / 1000.0);
+			jw.name("nodes").value(es.nodes.get());
+			jw.name("relationships").value(es.relationships.get());
+			jw.name("properties").value(es.properties.get());
+			jw.name("histogram").beginArray();
+			for (int i = 0; i < NBUCKETS; i++) {
+				long n = es.buckets.get(i);
+				if (n == 0)
+					continue;
+				jw.beginObject();
+				jw.name("belowms").value((1L << (i + 1)) / 1000.0);
+				jw.name("count").value(n);
+				jw.endObject();
+			}
+			jw.endArray();
+			jw.endObject();
+		}
+		jw.endObject();
+		ArrayList<SlowRequest> slow;
+		synchronized (slowest) {
+			slow = new ArrayList<SlowRequest>(slowest);
+		}
+		Collections.sort(slow, Collections.reverseOrder(FASTEST_FIRST));
+		jw.name("slowest").beginArray();
+		for (SlowRequest sr : slow) {
+			jw.beginObject();
+			jw.name("endpoint").value(sr.endpoint);
+			jw.name("detail").value(sr.detail);
+			jw.name("ms").value(sr.micros / 1000.0);
+			jw.name("nodes").value(sr.nodes);
+			jw.name("relationships").value(sr.relationships);
+			jw.name("properties").value(sr.properties);
+			jw.endObject();
+		}
+		jw.endArray();
+		jw.endObject();
+	}
+}
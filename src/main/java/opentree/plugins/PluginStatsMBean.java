@@ -0,0 +1,20 @@
+package opentree.plugins;
+
+/**
+ * JMX view of the plugin request statistics (see PluginStats)
+ */
+public interface PluginStatsMBean {
+	/**
+	 * @return the names of the endpoints that have served at least one request
+	 */
+	String [] getEndpoints();
+
+	long getRequestCount();
+
+	/**
+	 * @return the full statistics (histograms, traversal costs and slowest requests) as JSON
+	 */
+	String getStatsJSON();
+
+	void reset();
+}
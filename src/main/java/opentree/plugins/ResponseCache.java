@@ -0,0 +1,108 @@
+package opentree.plugins;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import opentree.LRUCache;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * Size bounded LRU cache of plugin responses that never serves data older than the last committed write.
+ *
+ * A transaction event handler registered with the database bumps the graph version (and empties the
+ *	cache) after every committed write. Each entry remembers the version it was computed against and is
+ *	only stored and served while that version is current, so a response whose computation overlapped a
+ *	write is never handed out.
+ */
+public class ResponseCache {
+	private static class Entry {
+		final long version;
+		final String value;
+
+		Entry(long version, String value){
+			this.version = version;
+			this.value = value;
+		}
+	}
+
+	private final LRUCache<String,Entry> cache;
+	private final AtomicLong version = new AtomicLong(0);
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	/**
+	 * @param maxentries the number of responses kept before the least recently used ones are dropped
+	 */
+	public ResponseCache(GraphDatabaseService graphDb, int maxentries){
+		cache = new LRUCache<String,Entry>(maxentries);
+		graphDb.registerTransactionEventHandler(new Invalidator());
+	}
+
+	/**
+	 * @return the version of the graph; capture it before computing a response that will be passed to `put`
+	 */
+	public long getGraphVersion(){
+		return version.get();
+	}
+
+	/**
+	 * @return the response stored under `key` if it was computed against the current graph, or null
+	 */
+	public String get(String key){
+		Entry e = cache.get(key);
+		if (e != null && e.version == version.get()) {
+			hits.incrementAndGet();
+			return e.value;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Stores `value` unless the graph has changed since `computedversion` (from getGraphVersion) was read
+	 */
+	public void put(String key, long computedversion, String value){
+		if (computedversion == version.get())
+			cache.put(key, new Entry(computedversion, value));
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	public int size(){
+		return cache.size();
+	}
+
+	/**
+	 * Bumps the graph version whenever a transaction that changed anything commits
+	 */
+	private class Invalidator implements TransactionEventHandler<Object> {
+		public Object beforeCommit(TransactionData data){
+			return null;
+		}
+
+		public void afterCommit(TransactionData data, Object state){
+			if (data.createdNodes().iterator().hasNext()
+					|| data.deletedNodes().iterator().hasNext()
+					|| data.createdRelationships().iterator().hasNext()
+					|| data.deletedRelationships().iterator().hasNext()
+					|| data.assignedNodeProperties().iterator().hasNext()
+					|| data.removedNodeProperties().iterator().hasNext()
+					|| data.assignedRelationshipProperties().iterator().hasNext()
+					|| data.removedRelationshipProperties().iterator().hasNext()) {
+				version.incrementAndGet();
+				cache.clear();
+			}
+		}
+
+		public void afterRollback(TransactionData data, Object state){
+		}
+	}
+}
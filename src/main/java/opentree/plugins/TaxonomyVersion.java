@@ -0,0 +1,82 @@
+package opentree.plugins;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import opentree.TaxonomyBase.RelTypes;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * A version number of the taxonomy that only changes when a committed transaction changes what the
+ *	in-memory trees (TaxonomyTreeIndex) are built from: TAXCHILDOF or PREFTAXCHILDOF relationships
+ *	(or their properties) and node names. Other writes, such as loading trees, leave it alone.
+ */
+public class TaxonomyVersion {
+	private final AtomicLong version = new AtomicLong(0);
+
+	public TaxonomyVersion(GraphDatabaseService graphDb){
+		graphDb.registerTransactionEventHandler(new Watcher());
+	}
+
+	/**
+	 * @return the current version; capture it before building anything from the taxonomy
+	 */
+	public long get(){
+		return version.get();
+	}
+
+	private static boolean isTaxonomic(Relationship rel){
+		return rel.isType(RelTypes.TAXCHILDOF) || rel.isType(RelTypes.PREFTAXCHILDOF);
+	}
+
+	/**
+	 * Decides before the commit (while the deleted entities can still be read) whether the
+	 *	taxonomy changes, and bumps the version once it has been committed
+	 */
+	private class Watcher implements TransactionEventHandler<Boolean> {
+		public Boolean beforeCommit(TransactionData data){
+			for (Relationship rel : data.createdRelationships())
+				if (isTaxonomic(rel))
+					return true;
+			for (Relationship rel : data.deletedRelationships()) {
+				try {
+					if (isTaxonomic(rel))
+						return true;
+				} catch (NotFoundException nfe) {
+					return true;
+				}
+			}
+			for (PropertyEntry<Relationship> pe : data.assignedRelationshipProperties())
+				if (isTaxonomic(pe.entity()))
+					return true;
+			for (PropertyEntry<Relationship> pe : data.removedRelationshipProperties()) {
+				try {
+					if (isTaxonomic(pe.entity()))
+						return true;
+				} catch (NotFoundException nfe) {
+					return true;
+				}
+			}
+			for (PropertyEntry<?> pe : data.assignedNodeProperties())
+				if (pe.key().equals("name"))
+					return true;
+			for (PropertyEntry<?> pe : data.removedNodeProperties())
+				if (pe.key().equals("name"))
+					return true;
+			return false;
+		}
+
+		public void afterCommit(TransactionData data, Boolean changed){
+			if (changed)
+				version.incrementAndGet();
+		}
+
+		public void afterRollback(TransactionData data, Boolean changed){
+		}
+	}
+}
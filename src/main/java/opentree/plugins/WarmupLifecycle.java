@@ -0,0 +1,40 @@
+package opentree.plugins;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.commons.configuration.Configuration;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.server.plugins.Injectable;
+import org.neo4j.server.plugins.PluginLifecycle;
+
+/**
+ * Starts the warm-up (see PluginServices.warmUp) when the server starts, in a background thread so that
+ *	the server comes up at once; getWarmupStatus reports when it is ready. Setting
+ *	"org.opentree.taxomachine.warmup=false" in the server configuration turns it off. When the server
+ *	stops, the services of the database are released.
+ */
+public class WarmupLifecycle implements PluginLifecycle {
+	private GraphDatabaseService graphDb = null;
+
+	public Collection<Injectable<?>> start(final GraphDatabaseService graphDb, Configuration config){
+		this.graphDb = graphDb;
+		if (config != null && config.getBoolean("org.opentree.taxomachine.warmup", true) == false)
+			return Collections.emptyList();
+		Thread t = new Thread("taxomachine-warmup"){
+			@Override
+			public void run(){
+				PluginServices.forDatabase(graphDb).warmUp();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return Collections.emptyList();
+	}
+
+	public void stop(){
+		if (graphDb != null)
+			PluginServices.release(graphDb);
+		graphDb = null;
+	}
+}
@@ -0,0 +1,122 @@
+package jade.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Round trips through streams that hand out a few bytes at a time, and headers that claim more than
+ *	the input holds
+ */
+public class BinaryTreeReaderTest {
+	/**
+	 * Returns at most 1 to 7 bytes from each read, so that the reader refills its buffer everywhere,
+	 *	including in the middle of the checksum
+	 */
+	private static class ShortReadStream extends FilterInputStream {
+		private final Random rand = new Random(7);
+
+		ShortReadStream(InputStream in){
+			super(in);
+		}
+
+		@Override
+		public int read(byte [] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, 1 + rand.nextInt(7)));
+		}
+	}
+
+	private static CompactTree randomTree(int nnodes, Random rand){
+		CompactTree tree = new CompactTree();
+		tree.addNode(CompactTree.NONE, "life");
+		for (int i = 1; i < nnodes; i++) {
+			// some names repeat, some are not ASCII
+			int nd = tree.addNode(rand.nextInt(i), (i % 5 == 0 ? "Bürger " : "taxon ") + rand.nextInt(nnodes / 2));
+			tree.setNodeId(nd, 1000 + rand.nextInt(100000));
+			tree.setLength(nd, rand.nextDouble());
+		}
+		return tree;
+	}
+
+	private static String newick(CompactTree tree) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		tree.writeNewick(sb, true);
+		return sb.toString();
+	}
+
+	@Test
+	public void roundTripsThroughShortReads() throws IOException {
+		Random rand = new Random(42);
+		CompactTree [] trees = {randomTree(1, rand), randomTree(2000, rand), randomTree(50, rand)};
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinaryTreeWriter writer = new BinaryTreeWriter(bytes);
+		for (CompactTree tree : trees)
+			writer.write(tree);
+		writer.close();
+
+		BinaryTreeReader reader = new BinaryTreeReader(new ShortReadStream(new ByteArrayInputStream(bytes.toByteArray())));
+		for (CompactTree tree : trees) {
+			CompactTree read = reader.readCompactTree();
+			assertEquals(tree.size(), read.size());
+			assertEquals(newick(tree), newick(read));
+			// the reader numbers the nodes in preorder
+			CompactTree.NodeIterator written = tree.preorder(tree.getRoot());
+			CompactTree.NodeIterator readback = read.preorder(read.getRoot());
+			while (written.hasNext())
+				assertEquals(tree.getNodeId(written.next()), read.getNodeId(readback.next()));
+		}
+		assertNull(reader.readCompactTree());
+	}
+
+	/**
+	 * @return the header of a tree with no flags and the given counts, followed by `rest`
+	 */
+	private static byte [] header(long nnodes, long nnames, int... rest){
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write('J');
+		bytes.write('B');
+		bytes.write('T');
+		bytes.write('R');
+		bytes.write(1);
+		bytes.write(0);
+		for (long v : new long [] {nnodes, nnames}) {
+			while (v >= 0x80) {
+				bytes.write((int) (v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			bytes.write((int) v);
+		}
+		for (int b : rest)
+			bytes.write(b);
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void rejectsHostileHeaders() throws IOException {
+		// more names than nodes
+		try {
+			new BinaryTreeReader(new ByteArrayInputStream(header(1, 2))).readCompactTree();
+			fail("read more names than nodes");
+		} catch (IOException ioe) {
+			assertTrue(ioe.getMessage(), ioe.getMessage().startsWith("bad name count"));
+		}
+		// huge counts and a huge name length, with nothing behind them: the input ends before anything big is allocated
+		byte [] huge = header(Integer.MAX_VALUE, Integer.MAX_VALUE, 0xFF, 0xFF, 0xFF, 0xFF, 0x07, 'a', 'b');
+		try {
+			new BinaryTreeReader(new ByteArrayInputStream(huge)).readCompactTree();
+			fail("read a truncated tree");
+		} catch (IOException ioe) {
+			assertEquals("binary tree ends early", ioe.getMessage());
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package jade.tree;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Trees keep growing after trimToSize, however small they were when trimmed
+ */
+public class CompactTreeTest {
+	@Test
+	public void growsAfterTrimmingSmallTrees() throws IOException {
+		CompactTree empty = new CompactTree();
+		empty.trimToSize();
+		int root = empty.addNode(CompactTree.NONE, "root");
+		empty.addNode(root, "a");
+		assertEquals(2, empty.size());
+
+		CompactTree one = new CompactTree();
+		root = one.addNode(CompactTree.NONE, "root");
+		one.trimToSize();
+		for (int i = 0; i < 5; i++)
+			one.addNode(root, "t" + i);
+		StringBuilder sb = new StringBuilder();
+		one.writeNewick(sb, false);
+		assertEquals("(t0,t1,t2,t3,t4)root;", sb.toString());
+	}
+}
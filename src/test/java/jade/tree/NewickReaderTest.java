@@ -0,0 +1,44 @@
+package jade.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Labels with blanks in them, and labels that newick gives no place for
+ */
+public class NewickReaderTest {
+	@Test
+	public void keepsBlanksInsideUnquotedLabels() throws IOException {
+		NewickReader nr = new NewickReader(new StringReader("((Homo  sapiens :1.5, Pan\ttroglodytes)Hominini [a comment] ,Gorilla)root;"));
+		JadeTree tree = nr.readNextTree();
+		JadeNode root = tree.getRoot();
+		assertEquals("root", root.getName());
+		JadeNode hominini = root.getChild(0);
+		assertEquals("Hominini", hominini.getName());
+		assertEquals("Homo sapiens", hominini.getChild(0).getName());
+		assertEquals(1.5, hominini.getChild(0).getBL(), 0);
+		assertEquals("Pan troglodytes", hominini.getChild(1).getName());
+		assertEquals("Gorilla", root.getChild(1).getName());
+		assertNull(nr.readNextTree());
+	}
+
+	@Test
+	public void rejectsASecondLabel() throws IOException {
+		String [] bad = {"('Homo' sapiens,Pan);", "(Homo:1.0 [length] sapiens,Pan);", "(Homo [comment] sapiens,Pan);"};
+		for (String newick : bad) {
+			try {
+				new NewickReader(new StringReader(newick)).readNextTree();
+				fail("read " + newick);
+			} catch (IOException ioe) {
+				assertTrue(ioe.getMessage(), ioe.getMessage().startsWith("second label for node \"Homo\""));
+			}
+		}
+	}
+}
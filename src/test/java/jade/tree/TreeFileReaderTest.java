@@ -0,0 +1,34 @@
+package jade.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * NEXUS TRANSLATE tables rename the tips and leave internal labels alone
+ */
+public class TreeFileReaderTest {
+	@Test
+	public void translatesTipsOnly() throws IOException {
+		String nexus = "#NEXUS\n"
+				+ "begin trees;\n"
+				+ "\ttranslate 1 'Homo sapiens', 2 Pan, 3 Gorilla;\n"
+				+ "\ttree one = [&R] ((1,2)3,3)1;\n"
+				+ "end;\n";
+		TreeFileReader reader = new TreeFileReader(new StringReader(nexus), null, 1);
+		JadeTree tree = reader.readNextTree();
+		JadeNode root = tree.getRoot();
+		// the support values match translated keys, but stay as they are
+		assertEquals("1", root.getName());
+		JadeNode hominini = root.getChild(0);
+		assertEquals("3", hominini.getName());
+		assertEquals("Homo sapiens", hominini.getChild(0).getName());
+		assertEquals("Pan", hominini.getChild(1).getName());
+		assertEquals("Gorilla", root.getChild(1).getName());
+		assertNull(reader.readNextTree());
+	}
+}
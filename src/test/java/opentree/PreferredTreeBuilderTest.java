@@ -0,0 +1,75 @@
+package opentree;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+
+import opentree.TaxonomyBase.RelTypes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+/**
+ * Preferred parents are chosen within the subtree that is being built
+ */
+public class PreferredTreeBuilderTest {
+	private GraphDatabaseService graphDb;
+	private Node life;
+	private Node genus;
+	private Node species;
+	private Node outsider;
+
+	/**
+	 * life <- genus <- species, with species also placed under a node that life does not reach (both
+	 *	before and after its place under genus, so that the relationship order does not matter)
+	 */
+	@Before
+	public void createTaxonomy(){
+		graphDb = new ImpermanentGraphDatabase();
+		Transaction tx = graphDb.beginTx();
+		try {
+			life = graphDb.createNode();
+			outsider = graphDb.createNode();
+			genus = graphDb.createNode();
+			species = graphDb.createNode();
+			link(genus, life, "ncbi");
+			link(species, outsider, "gbif");
+			link(species, genus, "ncbi");
+			link(species, outsider, "other");
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private static void link(Node child, Node parent, String source){
+		Relationship rel = child.createRelationshipTo(parent, RelTypes.TAXCHILDOF);
+		rel.setProperty("source", source);
+	}
+
+	@After
+	public void shutdown(){
+		graphDb.shutdown();
+	}
+
+	private static Node preferredParent(Node nd){
+		return nd.getSingleRelationship(RelTypes.PREFTAXCHILDOF, Direction.OUTGOING).getEndNode();
+	}
+
+	@Test
+	public void skipsParentsOutsideTheSubtree(){
+		PreferredTreeBuilder ptb = new PreferredTreeBuilder(graphDb, 2, 10);
+		assertEquals(2, ptb.build(life));
+		assertEquals(life, preferredParent(genus));
+		assertEquals(genus, preferredParent(species));
+		// the node outside life's subtree is left without a preferred place
+		assertEquals(Collections.singletonList(outsider.getId()), ptb.getUnreachableNodeIds());
+	}
+}
@@ -0,0 +1,103 @@
+package opentree.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import opentree.TaxonomyBase.RelTypes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+/**
+ * Children that several sources link to the same parent are listed and counted once
+ */
+public class ChildPagerTest {
+
+	private GraphDatabaseService graphDb;
+	private Node parent;
+	private Node firstchild;
+
+	/**
+	 * `parent` has 10 children from "ncbi"; every even one is also linked by "ottol". The first child has
+	 *	3 children of its own, each from both sources.
+	 */
+	@Before
+	public void createTaxonomy(){
+		graphDb = new ImpermanentGraphDatabase();
+		Transaction tx = graphDb.beginTx();
+		try {
+			parent = graphDb.createNode();
+			for (int i = 0; i < 10; i++) {
+				Node child = graphDb.createNode();
+				link(child, parent, "ncbi");
+				if (i % 2 == 0)
+					link(child, parent, "ottol");
+				if (i == 0)
+					firstchild = child;
+			}
+			for (int i = 0; i < 3; i++) {
+				Node grandchild = graphDb.createNode();
+				link(grandchild, firstchild, "ncbi");
+				link(grandchild, firstchild, "ottol");
+			}
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private static void link(Node child, Node parent, String source){
+		Relationship rel = child.createRelationshipTo(parent, RelTypes.TAXCHILDOF);
+		rel.setProperty("source", source);
+	}
+
+	@After
+	public void shutdown(){
+		graphDb.shutdown();
+	}
+
+	@Test
+	public void listsEachChildOnceAcrossPages(){
+		for (int maxcursors : new int [] {10, 0}) {
+			// with no live cursors every page skips from the start again
+			ChildPager pager = new ChildPager(new ResponseCache(graphDb, 100), maxcursors);
+			ArrayList<Long> listed = new ArrayList<Long>();
+			String cursor = null;
+			do {
+				ChildPager.Page page = pager.page(parent, null, cursor, 3);
+				for (ChildPager.Child c : page.children)
+					listed.add(c.rel.getStartNode().getId());
+				cursor = page.cursor;
+			} while (cursor != null);
+			assertEquals(10, listed.size());
+			assertEquals(10, new HashSet<Long>(listed).size());
+		}
+	}
+
+	@Test
+	public void countsDistinctChildren(){
+		ChildPager pager = new ChildPager(new ResponseCache(graphDb, 100), 10);
+		// the second listing is served from the cached counts
+		for (int i = 0; i < 2; i++) {
+			int total = 0;
+			for (ChildPager.Child c : pager.page(parent, null, null, 10).children) {
+				if (c.rel.getStartNode().equals(firstchild))
+					assertEquals(3, c.childcount);
+				total += c.childcount;
+			}
+			assertEquals(3, total);
+		}
+		ChildPager.Page ottol = pager.page(parent, "ottol", null, 10);
+		assertEquals(5, ottol.children.size());
+		assertNull(ottol.cursor);
+	}
+}
@@ -0,0 +1,232 @@
+package opentree.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import opentree.TaxonomyBase.RelTypes;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+/**
+ * Calls the GetJsons plugin methods from many threads at once against one small taxonomy and checks that
+ *	every call succeeds with the answer that the same call gave when it ran alone.
+ */
+public class GetJsonsConcurrencyTest {
+	private static final int NTHREADS = 16;
+	private static final int CALLS_PER_THREAD = 300;
+	/** each thread empties the response cache this often, so cached answers are recomputed under load */
+	private static final int CALLS_PER_INVALIDATION = 50;
+
+	private static GraphDatabaseService graphDb;
+	private static final List<Node> taxa = new ArrayList<Node>();
+	private static Node scratch;
+
+	/**
+	 * life, 4 orders of 5 families of 6 genera each, all from "ncbi" with matching preferred relationships.
+	 *	Every seventh genus is also placed in the first family by "gbif", and every fifth genus has a synonym.
+	 */
+	@BeforeClass
+	public static void loadTaxonomy(){
+		graphDb = new ImpermanentGraphDatabase();
+		Transaction tx = graphDb.beginTx();
+		try {
+			Index<Node> taxnodes = graphDb.index().forNodes("taxNodes");
+			Index<Node> taxnamednodes = graphDb.index().forNodes("taxNamedNodes");
+			Node life = taxon("life", null, taxnodes, taxnamednodes);
+			ArrayList<Node> families = new ArrayList<Node>();
+			int ngenera = 0;
+			for (int o = 0; o < 4; o++) {
+				Node order = taxon("Order" + o, life, taxnodes, taxnamednodes);
+				for (int f = 0; f < 5; f++) {
+					Node family = taxon("Family" + o + "_" + f, order, taxnodes, taxnamednodes);
+					families.add(family);
+					for (int g = 0; g < 6; g++) {
+						Node genus = taxon("Genus" + o + "_" + f + "_" + g, family, taxnodes, taxnamednodes);
+						if (ngenera % 7 == 0) {
+							Relationship rel = genus.createRelationshipTo(families.get(0), RelTypes.TAXCHILDOF);
+							rel.setProperty("source", "gbif");
+						}
+						if (ngenera % 5 == 0) {
+							Node syn = graphDb.createNode();
+							syn.setProperty("name", "Synonym" + o + "_" + f + "_" + g);
+							syn.setProperty("nametype", "synonym");
+							syn.setProperty("source", "ncbi");
+							syn.createRelationshipTo(genus, RelTypes.SYNONYMOF);
+						}
+						ngenera += 1;
+					}
+				}
+			}
+			scratch = graphDb.createNode();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	private static Node taxon(String name, Node parent, Index<Node> taxnodes, Index<Node> taxnamednodes){
+		Node nd = graphDb.createNode();
+		nd.setProperty("name", name);
+		taxnodes.add(nd, "name", name);
+		taxnamednodes.add(nd, "name", name);
+		if (parent != null) {
+			Relationship rel = nd.createRelationshipTo(parent, RelTypes.TAXCHILDOF);
+			rel.setProperty("source", "ncbi");
+			nd.createRelationshipTo(parent, RelTypes.PREFTAXCHILDOF);
+		}
+		taxa.add(nd);
+		return nd;
+	}
+
+	/**
+	 * Commits a write outside the taxonomy, which empties the response cache but leaves the taxonomy
+	 *	version (and so the in-memory trees) alone
+	 */
+	private static void invalidateResponses(){
+		Transaction tx = graphDb.beginTx();
+		try {
+			scratch.setProperty("touched", System.nanoTime());
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	@AfterClass
+	public static void shutdown(){
+		PluginServices.release(graphDb);
+		graphDb.shutdown();
+	}
+
+	/**
+	 * One plugin call, identified by a key so that its answer can be compared with the single threaded one
+	 */
+	private static abstract class Call {
+		final String key;
+
+		Call(String key){
+			this.key = key;
+		}
+
+		abstract String run() throws Exception;
+	}
+
+	private static List<Call> calls(){
+		final GetJsons gj = new GetJsons();
+		final PluginServices services = PluginServices.forDatabase(graphDb);
+		ArrayList<Call> calls = new ArrayList<Call>();
+		for (int i = 0; i < taxa.size(); i++) {
+			final Node nd = taxa.get(i);
+			final String name = (String) nd.getProperty("name");
+			final Node other = taxa.get((i * 37) % taxa.size());
+			calls.add(new Call("altrels " + name){
+				String run(){
+					return gj.getConflictTaxJsonAltRel(nd, "ncbi", null, null);
+				}
+			});
+			calls.add(new Call("explorer altrels " + name){
+				String run(){
+					// the shared explorer, without the response cache in front of it
+					return services.getTaxonomyExplorer().constructJSONAltRels(nd, "ncbi", new ArrayList<Long>());
+				}
+			});
+			calls.add(new Call("nodeid " + name){
+				String run(){
+					return gj.getNodeIDJSONFromName(graphDb, name);
+				}
+			});
+			calls.add(new Call("nodeids " + name){
+				String run() throws Exception {
+					return gj.getNodeIDsJSONFromNames(graphDb, new String [] {name, (String) other.getProperty("name"), "nosuchname"});
+				}
+			});
+			calls.add(new Call("autocomplete " + name){
+				String run() throws Exception {
+					return gj.autocompleteName(graphDb, name.substring(0, Math.min(name.length(), 7)), 10);
+				}
+			});
+			calls.add(new Call("children " + name){
+				String run() throws Exception {
+					// every first page gets a cursor of its own
+					return gj.getChildrenPage(nd, null, null, 4).replaceAll("\"cursor\":\"[^\"]*\"", "\"cursor\":\"\"");
+				}
+			});
+			calls.add(new Call("mrca " + name){
+				String run() throws Exception {
+					return gj.getMRCA(graphDb, new Long [] {nd.getId(), other.getId()}, null);
+				}
+			});
+			calls.add(new Call("lineage " + name){
+				String run() throws Exception {
+					return gj.getLineages(graphDb, new Long [] {nd.getId()}, null);
+				}
+			});
+		}
+		return calls;
+	}
+
+	@Test
+	public void concurrentCallsAgreeWithSequentialOnes() throws Exception {
+		final List<Call> calls = calls();
+		final HashMap<String,String> expected = new HashMap<String,String>();
+		for (Call c : calls)
+			expected.put(c.key, c.run());
+		assertEquals("[{\"nodeid\":" + taxa.get(0).getId() + "}]", expected.get("nodeid life"));
+		assertEquals(expected.get("altrels life"), expected.get("explorer altrels life"));
+		// otherwise the threads would only be handed the answers cached above
+		ResponseCache cache = PluginServices.forDatabase(graphDb).getResponseCache();
+		invalidateResponses();
+		assertEquals(0, cache.size());
+		long misses = cache.getMisses();
+
+		ExecutorService pool = Executors.newFixedThreadPool(NTHREADS);
+		try {
+			ArrayList<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+			for (int t = 0; t < NTHREADS; t++) {
+				final long seed = t;
+				results.add(pool.submit(new Callable<List<String>>(){
+					public List<String> call() throws Exception {
+						Random rand = new Random(seed);
+						ArrayList<String> mismatches = new ArrayList<String>();
+						for (int i = 0; i < CALLS_PER_THREAD; i++) {
+							if (i % CALLS_PER_INVALIDATION == CALLS_PER_INVALIDATION - 1)
+								invalidateResponses();
+							Call c = calls.get(rand.nextInt(calls.size()));
+							String got = c.run();
+							if (got.equals(expected.get(c.key)) == false)
+								mismatches.add(c.key + ": " + got);
+						}
+						return mismatches;
+					}
+				}));
+			}
+			ArrayList<String> mismatches = new ArrayList<String>();
+			// get() rethrows anything a call threw
+			for (Future<List<String>> f : results)
+				mismatches.addAll(f.get());
+			assertTrue("concurrent answers differ: " + mismatches, mismatches.isEmpty());
+			assertTrue(cache.getMisses() > misses);
+		} finally {
+			pool.shutdown();
+			assertTrue(pool.awaitTermination(60, TimeUnit.SECONDS));
+		}
+	}
+}
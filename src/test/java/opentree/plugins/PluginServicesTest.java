@@ -0,0 +1,94 @@
+package opentree.plugins;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import opentree.LCAIndex;
+import opentree.TaxonomyBase.RelTypes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+/**
+ * The MRCA index is only rebuilt after writes that change the taxonomy
+ */
+public class PluginServicesTest {
+	private static final RelationshipType STREECHILDOF = DynamicRelationshipType.withName("STREECHILDOF");
+
+	private GraphDatabaseService graphDb;
+	private Node life;
+	private Node child;
+
+	@Before
+	public void createTaxonomy(){
+		graphDb = new ImpermanentGraphDatabase();
+		Transaction tx = graphDb.beginTx();
+		try {
+			life = graphDb.createNode();
+			life.setProperty("name", "life");
+			child = graphDb.createNode();
+			child.setProperty("name", "child");
+			child.createRelationshipTo(life, RelTypes.PREFTAXCHILDOF);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+	}
+
+	@After
+	public void shutdown(){
+		PluginServices.release(graphDb);
+		graphDb.shutdown();
+	}
+
+	@Test
+	public void rebuildsLCAIndexOnlyForTaxonomyWrites(){
+		PluginServices services = PluginServices.forDatabase(graphDb);
+		LCAIndex first = services.getLCAIndex(null);
+
+		// a source tree relationship and a property other than the name leave the taxonomy alone
+		Transaction tx = graphDb.beginTx();
+		try {
+			Node other = graphDb.createNode();
+			other.createRelationshipTo(life, STREECHILDOF);
+			life.setProperty("uniqname", "life");
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		assertSame(first, services.getLCAIndex(null));
+
+		Node grandchild;
+		tx = graphDb.beginTx();
+		try {
+			grandchild = graphDb.createNode();
+			grandchild.setProperty("name", "grandchild");
+			grandchild.createRelationshipTo(child, RelTypes.PREFTAXCHILDOF);
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		LCAIndex second = services.getLCAIndex(null);
+		assertNotSame(first, second);
+		assertTrue(second.getTree().indexOf(grandchild.getId()) >= 0);
+
+		tx = graphDb.beginTx();
+		try {
+			for (Relationship rel : grandchild.getRelationships())
+				rel.delete();
+			tx.success();
+		} finally {
+			tx.finish();
+		}
+		assertNotSame(second, services.getLCAIndex(null));
+	}
+}